@@ -0,0 +1,27 @@
+package org.irmacard.chvservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the PIN verify structure of a PIN-pad verification, including the
+ * lookup of the reader profile.
+ */
+@State(Scope.Benchmark)
+public class PINVerifyStructureBenchmark {
+
+    private final ReaderProfiles profiles = ReaderProfiles.getDefault();
+
+    @Benchmark
+    public byte[] knownReader() {
+        return profiles.lookup("SCM Microsystems Inc. SPRx32 USB Smart Card Reader 00 00")
+                .createPINVerifyStructure();
+    }
+
+    @Benchmark
+    public byte[] unknownReader() {
+        return profiles.lookup("Generic USB Smart Card Reader 00 00")
+                .createPINVerifyStructure();
+    }
+}
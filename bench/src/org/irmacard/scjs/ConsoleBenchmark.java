@@ -0,0 +1,68 @@
+package org.irmacard.scjs;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of Console output for levels which are filtered out and for levels
+ * which pass the filter.
+ */
+@State(Scope.Benchmark)
+public class ConsoleBenchmark {
+
+    private PrintStream out;
+    private PrintStream err;
+    private Console console;
+    private Signal signal;
+
+    @Setup
+    public void setUp() {
+        // Keep the generated output from the benchmark report
+        out = System.out;
+        err = System.err;
+        PrintStream discard = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        System.setOut(discard);
+        System.setErr(discard);
+
+        console = new Console(null);
+        console.setOutputFilter(Console.DEFAULT_OUTPUT_FILTER);
+        signal = new Signal(this, "cardInserted");
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+        System.setErr(err);
+    }
+
+    @Benchmark
+    public void filteredTraceCall() {
+        console.traceCall("emit(%s)", signal);
+    }
+
+    @Benchmark
+    public void filteredOutput() {
+        console.output(Console.Level.DEBUG, "card inserted");
+    }
+
+    @Benchmark
+    public void unfilteredOutput() {
+        console.output(Console.Level.INFO, "card inserted");
+    }
+
+    @Benchmark
+    public void unfilteredErrorOutput() {
+        console.output(Console.Level.WARNING, "card inserted");
+    }
+}
@@ -0,0 +1,44 @@
+package org.irmacard.scjs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding of responses and decoding of commands as they cross the bridge.
+ */
+@State(Scope.Thread)
+public class HexCodecBenchmark {
+
+    @Param({"5", "64", "261"})
+    public int length;
+
+    private byte[] bytes;
+    private String hex;
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        hex = HexCodec.encode(bytes);
+    }
+
+    @Benchmark
+    public String encode() {
+        return HexCodec.encode(bytes);
+    }
+
+    @Benchmark
+    public int decodeStrict() {
+        return HexCodec.decode(hex, HexCodec.buffer(hex), true);
+    }
+
+    @Benchmark
+    public int decodeLenient() {
+        return HexCodec.decode(hex, HexCodec.buffer(hex), false);
+    }
+}
@@ -0,0 +1,54 @@
+package org.irmacard.scjs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Throughput of signals from emission to delivery to the signal handlers.
+ */
+@State(Scope.Benchmark)
+public class SignalDispatcherBenchmark {
+
+    private static final int SIGNALS = 1000;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private SignalDispatcher dispatcher;
+    private Signal signal;
+    private long emitted;
+
+    @Setup
+    public void setUp() {
+        dispatcher = new SignalDispatcher(new SignalDispatcher.Sink() {
+            public void dispatch(Signal[] signals) {
+                delivered.addAndGet(signals.length);
+            }
+        });
+        // Room for a whole invocation, so no signals are dropped
+        dispatcher.setCapacity(SIGNALS);
+        dispatcher.start();
+        signal = new Signal(this, "cardInserted");
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIGNALS)
+    public void emit() {
+        for (int i = 0; i < SIGNALS; i++) {
+            dispatcher.enqueue(signal);
+        }
+        emitted += SIGNALS;
+        while (delivered.get() + dispatcher.getDropped() < emitted) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.irmacard.scjs;
+
+import java.security.PrivilegedExceptionAction;
+
+import net.sourceforge.scuba.smartcards.TerminalCardService;
+
+import org.irmacard.chvservice.CardHolderVerificationService;
+import org.irmacard.simulator.CardScript;
+import org.irmacard.simulator.VirtualCard;
+import org.irmacard.simulator.VirtualReaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A hex-encoded APDU from the page to a simulated card and back, along the
+ * path of transmitString: decoding, the session thread, the card service 
+ * and encoding of the response.
+ */
+@State(Scope.Benchmark)
+public class TransmitBenchmark {
+
+    private static final String SELECT = "00A4040009F849524D416361726400";
+
+    private CardSession session;
+
+    @Setup
+    public void setUp() throws Exception {
+        CardScript script = new CardScript();
+        script.add("00A40400 *", "9000");
+        VirtualReaders readers = new VirtualReaders();
+        readers.insertCard("Virtual", new VirtualCard(VirtualCard.DEFAULT_ATR, script));
+
+        CardHolderVerificationService service = new CardHolderVerificationService(
+                new TerminalCardService(readers.getTerminal("Virtual")));
+        service.open();
+        session = new CardSession(1, "Virtual", service);
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.close();
+    }
+
+    @Benchmark
+    public String transmitString() throws Exception {
+        return session.execute(new PrivilegedExceptionAction<String>() {
+            public String run() throws Exception {
+                byte[] buffer = HexCodec.buffer(SELECT);
+                int length = HexCodec.decode(SELECT, buffer, true);
+                net.sourceforge.scuba.smartcards.CommandAPDU command = 
+                        new net.sourceforge.scuba.smartcards.CommandAPDU(buffer, 0, length);
+                return HexCodec.encode(session.getService().transmit(command).getBytes());
+            }
+        });
+    }
+}
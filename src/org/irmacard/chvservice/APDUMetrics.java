@@ -0,0 +1,164 @@
+package org.irmacard.chvservice;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+/**
+ * Latency histograms of transmitted APDUs, keyed by CLA, INS and the first
+ * status byte of the response, together with the number of bytes sent and
+ * received and the number of reconnects after a card reset. Recording does
+ * not take any locks.
+ */
+public class APDUMetrics {
+
+	/**
+	 * Histogram of latencies with a bucket per power of two nanoseconds.
+	 */
+	static class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long nanos) {
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+			count.incrementAndGet();
+			total.addAndGet(nanos);
+
+			long current;
+			while (nanos > (current = max.get())
+					&& !max.compareAndSet(current, nanos)) {
+				// retry with the updated maximum
+			}
+		}
+
+		/**
+		 * Gets the upper bound of the bucket holding a percentile.
+		 * @param percentile The percentile, between 0 and 1
+		 * @return The latency in nanoseconds
+		 */
+		long percentile(double percentile) {
+			long target = (long) Math.ceil(percentile * count.get());
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= target && seen > 0) {
+					return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+				}
+			}
+			return max.get();
+		}
+	}
+
+	private final ConcurrentMap<Integer, Histogram> histograms =
+			new ConcurrentHashMap<Integer, Histogram>();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+
+	/**
+	 * Records a transmitted APDU.
+	 * @param capdu The command sent to the card
+	 * @param rapdu The response of the card
+	 * @param nanos The time between sending the command and receiving the
+	 *            response, in nanoseconds
+	 */
+	public void record(CommandAPDU capdu, ResponseAPDU rapdu, long nanos) {
+		Integer key = (capdu.getCLA() & 0xff) << 16 | (capdu.getINS() & 0xff) << 8
+				| rapdu.getSW1();
+		Histogram histogram = histograms.get(key);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = histograms.putIfAbsent(key, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		histogram.record(nanos);
+
+		bytesSent.addAndGet(commandLength(capdu));
+		bytesReceived.addAndGet(rapdu.getNr() + 2);
+	}
+
+	/**
+	 * Records that a service reconnected to a card after it was reset.
+	 */
+	public void recordReconnect() {
+		reconnects.incrementAndGet();
+	}
+
+	/**
+	 * Discards everything recorded so far.
+	 */
+	public void reset() {
+		histograms.clear();
+		bytesSent.set(0);
+		bytesReceived.set(0);
+		reconnects.set(0);
+	}
+
+	/**
+	 * Describes the recorded metrics as JSON. Latencies are given in
+	 * microseconds; percentiles are the upper bound of their bucket.
+	 * @return The metrics as a JSON object
+	 */
+	public String toJSON() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"bytesSent\":").append(bytesSent.get())
+			.append(",\"bytesReceived\":").append(bytesReceived.get())
+			.append(",\"reconnects\":").append(reconnects.get())
+			.append(",\"latency\":[");
+
+		boolean first = true;
+		for (Map.Entry<Integer, Histogram> entry : histograms.entrySet()) {
+			int key = entry.getKey();
+			Histogram histogram = entry.getValue();
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+
+			json.append("{\"cla\":\"").append(hex(key >> 16))
+				.append("\",\"ins\":\"").append(hex(key >> 8))
+				.append("\",\"sw1\":\"").append(hex(key))
+				.append("\",\"count\":").append(histogram.count.get())
+				.append(",\"total\":").append(histogram.total.get() / 1000)
+				.append(",\"p50\":").append(histogram.percentile(0.50) / 1000)
+				.append(",\"p90\":").append(histogram.percentile(0.90) / 1000)
+				.append(",\"p99\":").append(histogram.percentile(0.99) / 1000)
+				.append(",\"max\":").append(histogram.max.get() / 1000)
+				.append('}');
+		}
+
+		return json.append("]}").toString();
+	}
+
+	private static String hex(int b) {
+		String digits = Integer.toHexString(0x100 | (b & 0xff)).toUpperCase();
+		return digits.substring(1);
+	}
+
+	/**
+	 * Computes the encoded length of a command without encoding it.
+	 */
+	private static int commandLength(CommandAPDU capdu) {
+		int nc = capdu.getNc();
+		int ne = capdu.getNe();
+		boolean extended = nc > 255 || ne > 256;
+
+		int length = 4;
+		if (nc > 0) {
+			length += (extended ? 3 : 1) + nc;
+		}
+		if (ne > 0) {
+			length += extended ? (nc > 0 ? 2 : 3) : 1;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,162 @@
+package org.irmacard.chvservice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the features and PIN-pad properties of readers, so they do not
+ * have to be queried from the reader for every service. The cache can be
+ * stored in a compact binary file and loaded again on a later start.
+ */
+public class CapabilityCache {
+
+	/**
+	 * Version of the file format.
+	 */
+	private static final int FORMAT = 1;
+
+	/**
+	 * The capabilities of a single reader.
+	 */
+	public static class Capabilities {
+
+		private final Map<Byte, Integer> features;
+		private final byte[] pinProperties;
+
+		/**
+		 * @param features Mapping of features to their control codes
+		 * @param pinProperties Response to FEATURE_IFD_PIN_PROPERTIES, or
+		 *            an empty array if not supported
+		 */
+		public Capabilities(Map<Byte, Integer> features, byte[] pinProperties) {
+			this.features = Collections.unmodifiableMap(
+					new HashMap<Byte, Integer>(features));
+			this.pinProperties = pinProperties.clone();
+		}
+
+		public Map<Byte, Integer> getFeatures() {
+			return features;
+		}
+
+		public byte[] getPinProperties() {
+			return pinProperties.clone();
+		}
+	}
+
+	private final File file;
+	private final Map<String, Capabilities> entries =
+			new ConcurrentHashMap<String, Capabilities>();
+	private volatile boolean modified = false;
+
+	/**
+	 * @param file The file in which the cache is stored
+	 */
+	public CapabilityCache(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Gets the cached capabilities of a reader. The reader name as reported
+	 * by PC/SC identifies the model of the reader.
+	 *
+	 * @param reader The name of the reader
+	 * @return The capabilities, or null if they are not cached
+	 */
+	public Capabilities get(String reader) {
+		return entries.get(reader);
+	}
+
+	/**
+	 * Stores the capabilities of a reader.
+	 *
+	 * @param reader The name of the reader
+	 * @param capabilities The capabilities of the reader
+	 */
+	public void put(String reader, Capabilities capabilities) {
+		entries.put(reader, capabilities);
+		modified = true;
+	}
+
+	/**
+	 * Replaces the contents of the cache by those of its file, if it exists.
+	 *
+	 * @throws IOException if the file cannot be read
+	 */
+	public void load() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != FORMAT) {
+				return;
+			}
+
+			Map<String, Capabilities> loaded = new HashMap<String, Capabilities>();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String reader = in.readUTF();
+				Map<Byte, Integer> features = new HashMap<Byte, Integer>();
+				int nrFeatures = in.readUnsignedByte();
+				for (int j = 0; j < nrFeatures; j++) {
+					features.put(in.readByte(), in.readInt());
+				}
+				byte[] pinProperties = new byte[in.readUnsignedShort()];
+				in.readFully(pinProperties);
+				loaded.put(reader, new Capabilities(features, pinProperties));
+			}
+
+			entries.clear();
+			entries.putAll(loaded);
+			modified = false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the contents of the cache to its file, if they were modified.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save() throws IOException {
+		if (!modified) {
+			return;
+		}
+
+		Map<String, Capabilities> snapshot = new HashMap<String, Capabilities>(entries);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(FORMAT);
+			out.writeInt(snapshot.size());
+			for (Map.Entry<String, Capabilities> entry : snapshot.entrySet()) {
+				out.writeUTF(entry.getKey());
+				Map<Byte, Integer> features = entry.getValue().features;
+				out.writeByte(features.size());
+				for (Map.Entry<Byte, Integer> feature : features.entrySet()) {
+					out.writeByte(feature.getKey());
+					out.writeInt(feature.getValue());
+				}
+				byte[] pinProperties = entry.getValue().pinProperties;
+				out.writeShort(pinProperties.length);
+				out.write(pinProperties);
+			}
+			modified = false;
+		} finally {
+			out.close();
+		}
+	}
+}
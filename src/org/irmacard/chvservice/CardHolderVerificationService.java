@@ -1,13 +1,24 @@
 package org.irmacard.chvservice;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
+
 import net.sourceforge.scuba.util.Hex;
 
 import net.sourceforge.scuba.smartcards.CardService;
@@ -16,11 +27,22 @@ import net.sourceforge.scuba.smartcards.CommandAPDU;
 import net.sourceforge.scuba.smartcards.ResponseAPDU;
 import net.sourceforge.scuba.smartcards.TerminalCardService;
 
+
 public class CardHolderVerificationService extends CardService {
 
 	private static final long serialVersionUID = -7992986822145276115L;
 
 	public final static int PIN_OK = 1000;
+
+	/**
+	 * Default cap on the number of data bytes in a chained response.
+	 */
+	public final static int DEFAULT_MAX_RESPONSE_LENGTH = 65536;
+
+	/**
+	 * Default time in milliseconds for entering the PIN on a PIN-pad.
+	 */
+	public final static long DEFAULT_PIN_PAD_TIMEOUT = 90000;
 	
     static final String[] FEATURES = new String[]{"NO_FEATURE",
         "FEATURE_VERIFY_PIN_START",
@@ -50,14 +72,13 @@ public class CardHolderVerificationService extends CardService {
     static final Byte FEATURE_MCT_READER_DIRECT = new Byte((byte) 0x08);
     static final Byte FEATURE_MCT_UNIVERSAL = new Byte((byte) 0x09);
     static final Byte FEATURE_IFD_PIN_PROPERTIES = new Byte((byte) 0x0a);
-    HashMap<Byte, Integer> features;
-    byte bEntryValidationCondition = 0x02;  // validation key pressed
-    byte bTimeOut = 0x00;                   // 0x3c;                   // 60sec (= max on ReinerSCT)
-    byte bTimeOut2 = 0x00;                  // default (attention with SCM)
-    byte wPINMaxExtraDigitMin = 0x00;         // min pin length zero digits
-    byte wPINMaxExtraDigitMax = 0x04;         // max pin length 12 digits
+    static final Byte FEATURE_ABORT = new Byte((byte) 0x0b);
+    static final int INS_SELECT = 0xA4;
+    Map<Byte, Integer> features;
+    byte[] pinProperties = new byte[0];
+    volatile ReaderProfile profile;
     
-	private TerminalCardService service;
+	private volatile TerminalCardService service;
 	private List<IPinVerificationListener> pinCallbacks = new Vector<IPinVerificationListener>();
 	
 	/* Invariant: when no false PIN was entered in the last attempt
@@ -65,10 +86,82 @@ public class CardHolderVerificationService extends CardService {
 	 */
 	private Integer nrTriesLeft = null;
 
+	/* The settings below are made by the caller, but used on the thread of
+	 * the session, hence volatile.
+	 */
+
+	/* Whether 61xx and 6Cxx responses are resolved by this service instead
+	 * of being returned to the caller.
+	 */
+	private volatile boolean responseChaining = false;
+	private volatile int maxResponseLength = DEFAULT_MAX_RESPONSE_LENGTH;
+
+	private volatile CapabilityCache capabilityCache = null;
+	private volatile APDUMetrics metrics = null;
+
+	/* Responses to cacheable commands are taken from responseCache. They
+	 * depend on the application selected by the last successful SELECT sent
+	 * to the card, which is null when none was sent since the card was
+	 * (re)connected.
+	 */
+	private volatile ResponseCache responseCache = null;
+	private byte[] selected = null;
+	private volatile byte[] atr = null;
+
+	/* Whether the card is reconnected when it was reset, and whether the
+	 * last successful SELECT is then sent again.
+	 */
+	private volatile boolean autoReconnect = false;
+	private volatile boolean replaySelect = false;
+	private volatile int reconnects = 0;
+
+	/* Channel of the card while it is held exclusively, see beginTransaction.
+	 */
+	private volatile CardChannel exclusiveChannel = null;
+
+	/* A PIN entry on the PIN-pad runs on the thread which calls verifyPIN,
+	 * which also holds the card during a transaction. pinPadTimeout is
+	 * passed to the reader as bTimeOut, so the reader ends the entry
+	 * itself. pinPadTimer also aborts it with FEATURE_ABORT when it takes
+	 * longer than pinPadTimeout, as does cancelPinEntry. pinEntry holds PIN_ENTRY_IN_PROGRESS while an entry is
+	 * in progress and the status it was aborted with once aborted.
+	 */
+	private static final ScheduledExecutorService pinPadTimer =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "PIN-pad timer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final String PIN_ENTRY_IN_PROGRESS = new String("in progress");
+	private volatile long pinPadTimeout = DEFAULT_PIN_PAD_TIMEOUT;
+	private final AtomicReference<String> pinEntry = new AtomicReference<String>();
+	private volatile ReaderProfiles readerProfiles = ReaderProfiles.getDefault();
+
 	public CardHolderVerificationService(TerminalCardService service) {
 		this.service = service;
 	}
 
+	/**
+	 * Sets the cache from which the reader features are taken, and to which
+	 * they are added after querying the reader.
+	 * @param cache The cache to use, or null to always query the reader
+	 */
+	public void setCapabilityCache(CapabilityCache cache) {
+		capabilityCache = cache;
+	}
+
+	/**
+	 * Sets the registry from which the PIN-pad quirks of the reader are
+	 * taken.
+	 * @param profiles The registry of reader profiles
+	 */
+	public void setReaderProfiles(ReaderProfiles profiles) {
+		readerProfiles = profiles;
+		profile = null;
+	}
+
 	/**
 	 * Adds a new listener
 	 * @param cb The listener to add
@@ -93,25 +186,348 @@ public class CardHolderVerificationService extends CardService {
 		return service.isOpen();
 	}
 
+	/**
+	 * Gets exclusive access to the card, so other applications cannot send
+	 * commands to it until endTransaction is called. Commands within the
+	 * transaction are sent directly on the channel of the card, and must be
+	 * sent from the thread which began the transaction.
+	 * @throws CardServiceException if a transaction is already in progress
+	 *             or exclusive access cannot be obtained
+	 */
+	public void beginTransaction() throws CardServiceException {
+		if (exclusiveChannel != null) {
+			throw new CardServiceException("Transaction already in progress");
+		}
+		try {
+			Card card = service.getTerminal().connect("*");
+			card.beginExclusive();
+			exclusiveChannel = card.getBasicChannel();
+		} catch (CardException e) {
+			throw new CardServiceException("Cannot begin transaction: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Releases the exclusive access to the card.
+	 * @return Whether a transaction was in progress
+	 * @throws CardServiceException if the exclusive access cannot be released
+	 */
+	public boolean endTransaction() throws CardServiceException {
+		CardChannel channel = exclusiveChannel;
+		if (channel == null) {
+			return false;
+		}
+		exclusiveChannel = null;
+		try {
+			channel.getCard().endExclusive();
+		} catch (CardException e) {
+			throw new CardServiceException("Cannot end transaction: " + e.getMessage());
+		} catch (IllegalStateException e) {
+			// The card was disconnected, which released the exclusive access
+		}
+		return true;
+	}
+
+	public boolean isInTransaction() {
+		return exclusiveChannel != null;
+	}
+
 	public ResponseAPDU transmit(CommandAPDU capdu)
 	throws CardServiceException {
-		return service.transmit(capdu);
+		ResponseCache cache = responseCache;
+		byte[] command = null;
+		boolean cacheable = false;
+		if (capdu.getINS() == INS_SELECT) {
+			command = capdu.getBytes();
+		}
+		if (cache != null && cache.isEnabled()) {
+			if (command == null) {
+				command = capdu.getBytes();
+			}
+			cacheable = cache.isCacheable(command);
+			if (!cacheable) {
+				if (cache.isStateChanging(command)) {
+					invalidateResponses();
+				}
+			} else if (capdu.getINS() != INS_SELECT || Arrays.equals(command, selected)) {
+				// A SELECT is only answered from the cache when it does not
+				// change the selected application
+				byte[] cached = cache.get(getReaderName(), getCachedATR(), selected, command);
+				if (cached != null) {
+					return new ResponseAPDU(cached);
+				}
+			}
+		}
+
+		long start = System.nanoTime();
+		ResponseAPDU rapdu = exchange(capdu);
+		if (responseChaining) {
+			rapdu = chainResponse(capdu, rapdu);
+		}
+		APDUMetrics recorder = metrics;
+		if (recorder != null) {
+			recorder.record(capdu, rapdu, System.nanoTime() - start);
+		}
+
+		if (command != null) {
+			if (capdu.getINS() == INS_SELECT) {
+				if (rapdu.getSW() == 0x9000) {
+					if (!Arrays.equals(command, selected)) {
+						// Selecting another application or file resets the
+						// security status; this includes the first SELECT,
+						// whose response is cached below
+						invalidateResponses();
+						selected = command.clone();
+					}
+				} else {
+					// The selected application is unknown after a failed SELECT
+					selected = null;
+					invalidateResponses();
+					return rapdu;
+				}
+			}
+			if (cacheable && rapdu.getSW() == 0x9000) {
+				cache.put(getReaderName(), getCachedATR(), selected, command, rapdu.getBytes());
+			}
+		}
+		return rapdu;
+	}
+
+	/**
+	 * Sends a command to the card, directly on the channel of the card when
+	 * a transaction is in progress. Otherwise the command is sent once more
+	 * after reconnecting, if enabled and the card was reset.
+	 */
+	private ResponseAPDU exchange(CommandAPDU capdu) throws CardServiceException {
+		CardChannel channel = exclusiveChannel;
+		if (channel == null) {
+			try {
+				return service.transmit(capdu);
+			} catch (CardServiceException e) {
+				if (!autoReconnect || !isReset(e)) {
+					throw e;
+				}
+			} catch (IllegalStateException e) {
+				if (!autoReconnect) {
+					throw e;
+				}
+			}
+			reconnect();
+			return service.transmit(capdu);
+		}
+		try {
+			return new ResponseAPDU(channel.transmit(
+					new javax.smartcardio.CommandAPDU(capdu.getBytes())).getBytes());
+		} catch (CardException e) {
+			throw new CardServiceException(e.getMessage());
+		} catch (IllegalStateException e) {
+			throw new CardServiceException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Enables or disables reconnecting to the card when it turns out to have
+	 * been reset or disconnected, after which the failed command is sent
+	 * again. Commands within a transaction are never retried.
+	 * @param enabled Whether to reconnect
+	 * @param replay Whether to send the last successful SELECT again after
+	 *            reconnecting, to restore the selected application
+	 */
+	public void setAutoReconnect(boolean enabled, boolean replay) {
+		replaySelect = replay;
+		autoReconnect = enabled;
+	}
+
+	/**
+	 * Gets the number of times this service reconnected to the card.
+	 * @return The number of reconnects
+	 */
+	public int getReconnectCount() {
+		return reconnects;
+	}
+
+	/**
+	 * Replaces the connection to the card by a new one.
+	 */
+	private void reconnect() throws CardServiceException {
+		TerminalCardService old = service;
+		old.close();
+		TerminalCardService fresh = new TerminalCardService(old.getTerminal());
+		fresh.open();
+		service = fresh;
+		atr = null;
+		reconnects++;
+		APDUMetrics recorder = metrics;
+		if (recorder != null) {
+			recorder.recordReconnect();
+		}
+		invalidateResponses();
+
+		// The card starts without selected application after the reset
+		byte[] select = selected;
+		selected = null;
+		if (replaySelect && select != null
+				&& fresh.transmit(new CommandAPDU(select)).getSW() == 0x9000) {
+			selected = select;
+		}
+	}
+
+	/**
+	 * Checks whether a failure is caused by a reset or disconnected card,
+	 * as reported by PC/SC.
+	 */
+	private static boolean isReset(Exception e) {
+		String message = String.valueOf(e.getMessage());
+		return message.contains("SCARD_W_RESET_CARD")
+				|| message.contains("SCARD_W_UNPOWERED_CARD")
+				|| message.contains("SCARD_E_INVALID_HANDLE")
+				|| message.contains("has been disconnected");
+	}
+
+	/**
+	 * Sets the cache from which responses to cacheable commands are taken.
+	 * @param cache The cache to use, or null to transmit all commands
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		responseCache = cache;
+	}
+
+	/**
+	 * Discards the cached responses of the card, as its state changed.
+	 */
+	private void invalidateResponses() {
+		ResponseCache cache = responseCache;
+		if (cache != null) {
+			cache.invalidate(getReaderName());
+		}
+	}
+
+	private String getReaderName() {
+		return service.getTerminal().getName();
+	}
+
+	private byte[] getCachedATR() throws CardServiceException {
+		if (atr == null) {
+			atr = service.getATR();
+		}
+		return atr;
+	}
+
+	/**
+	 * Sets the metrics to which the transmitted APDUs are recorded.
+	 * @param metrics The metrics to record to, or null to not record
+	 */
+	public void setMetrics(APDUMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Enables or disables automatic response chaining. When enabled, a 6Cxx
+	 * response causes the command to be re-sent with the indicated Le and
+	 * 61xx responses are followed by GET RESPONSE commands, after which the
+	 * collected data is returned as a single response.
+	 * 
+	 * @param enabled Whether response chaining should be performed
+	 * @param maxLength Maximum number of data bytes in a chained response
+	 */
+	public void setResponseChaining(boolean enabled, int maxLength) {
+		if (maxLength <= 0) {
+			throw new IllegalArgumentException("invalid maximum response length: " + maxLength);
+		}
+		maxResponseLength = maxLength;
+		responseChaining = enabled;
+	}
+
+	public boolean isResponseChaining() {
+		return responseChaining;
+	}
+
+	private ResponseAPDU chainResponse(CommandAPDU capdu, ResponseAPDU rapdu)
+	throws CardServiceException {
+		if (rapdu.getSW1() == 0x6C) {
+			rapdu = exchange(new CommandAPDU(capdu.getCLA(),
+					capdu.getINS(), capdu.getP1(), capdu.getP2(),
+					capdu.getData(), expectedLength(rapdu.getSW2())));
+		}
+		if (rapdu.getSW1() != 0x61) {
+			return rapdu;
+		}
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		appendData(data, rapdu);
+		// GET RESPONSE keeps the logical channel of the original command
+		int cla = capdu.getCLA() & 0x03;
+		while (rapdu.getSW1() == 0x61) {
+			CommandAPDU getResponse = new CommandAPDU(cla, 0xC0, 0x00, 0x00,
+					expectedLength(rapdu.getSW2()));
+			rapdu = exchange(getResponse);
+			if (rapdu.getSW1() == 0x6C) {
+				rapdu = exchange(new CommandAPDU(cla, 0xC0, 0x00, 0x00,
+						expectedLength(rapdu.getSW2())));
+			}
+			if (rapdu.getNr() == 0 && rapdu.getSW1() == 0x61) {
+				// The card does not make any progress, stop chaining
+				break;
+			}
+			appendData(data, rapdu);
+		}
+		data.write(rapdu.getSW1());
+		data.write(rapdu.getSW2());
+
+		return new ResponseAPDU(data.toByteArray());
+	}
+
+	private void appendData(ByteArrayOutputStream data, ResponseAPDU rapdu)
+	throws CardServiceException {
+		byte[] bytes = rapdu.getData();
+		if (data.size() + bytes.length > maxResponseLength) {
+			throw new CardServiceException("Chained response exceeds "
+					+ maxResponseLength + " bytes");
+		}
+		data.write(bytes, 0, bytes.length);
+	}
+
+	private static int expectedLength(int le) {
+		return le == 0 ? 256 : le;
 	}
 
 	public void close() {
+		exclusiveChannel = null;
 		service.close();
 	}
 
+	/**
+	 * Sets the time the user gets to enter the PIN on a PIN-pad, after which
+	 * the entry is aborted. The reader is given the time in whole seconds,
+	 * up to 255; it may enforce a shorter maximum.
+	 * @param timeout The time in milliseconds
+	 */
+	public void setPinPadTimeout(long timeout) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("invalid PIN-pad timeout: " + timeout);
+		}
+		pinPadTimeout = timeout;
+	}
+
+	/**
+	 * Cancels a PIN entry on the PIN-pad which is in progress, if any. This
+	 * is called from another thread than the one waiting for the entry.
+	 * @return Whether a PIN entry was in progress
+	 */
+	public boolean cancelPinEntry() {
+		return abortPinEntry(IPinVerificationListener.PIN_PAD_CANCELLED);
+	}
+
     public int verifyPIN() 
     throws CardServiceException {
-/*        queryFeatures();
+        invalidateResponses();
+        queryFeatures();
         
-/*        if (features.containsKey(FEATURE_VERIFY_PIN_DIRECT)) {
+        if (features.containsKey(FEATURE_VERIFY_PIN_DIRECT)) {
             return verifyPinUsingPinpad();
-        } else {*/
-    	System.out.println("Verifying using dialog");
+        } else {
             return verifyPinUsingDialog();
-//        }
+        }
     }
 
     private int verifyPinUsingDialog()
@@ -126,9 +542,7 @@ public class CardHolderVerificationService extends CardService {
 		byte[] data = new byte[8];
 		System.arraycopy(pinBytes, 0, data, 0, pinBytes.length);
         CommandAPDU c = new CommandAPDU(0, 0x20, 0, 0, data);
-        System.out.println("C: " + Hex.toHexString(c.getBytes()));
         ResponseAPDU r = service.transmit(c);
-        System.out.println("R: " + Hex.toHexString(r.getBytes()));
 
         return processPinResponse(r.getSW());
     }
@@ -146,14 +560,80 @@ public class CardHolderVerificationService extends CardService {
 			l.pinPadPinRequired(nrTriesLeft);
 		}
 
-		int sw = Integer.parseInt(Hex.toHexString(VERIFY_PIN_DIRECT()), 16);
+		// The entry blocks this thread; callers which should not wait use
+		// the asynchronous verification of the bridge
+		String status = IPinVerificationListener.PIN_PAD_FAILED;
+		pinEntry.set(PIN_ENTRY_IN_PROGRESS);
+		ScheduledFuture<?> deadline = pinPadTimer.schedule(new Runnable() {
+			public void run() {
+				abortPinEntry(IPinVerificationListener.PIN_PAD_TIMEOUT);
+			}
+		}, pinPadTimeout, TimeUnit.MILLISECONDS);
+		try {
+			byte[] resp;
+			try {
+				resp = VERIFY_PIN_DIRECT();
+			} finally {
+				deadline.cancel(false);
+			}
+			String aborted = pinEntry.getAndSet(null);
+			if (aborted != PIN_ENTRY_IN_PROGRESS) {
+				status = aborted;
+				throw new CardServiceException("PIN verification failed: " + aborted);
+			}
+			if (resp.length < 2) {
+				throw new CardServiceException("PIN verification failed: invalid response");
+			}
+			int sw = ((resp[resp.length - 2] & 0xff) << 8) | (resp[resp.length - 1] & 0xff);
+
+			int result = processPinResponse(sw);
+			status = IPinVerificationListener.PIN_PAD_ENTERED;
+			return result;
+		} catch (CardServiceException e) {
+			String aborted = pinEntry.getAndSet(null);
+			if (aborted != null && aborted != PIN_ENTRY_IN_PROGRESS) {
+				status = aborted;
+				throw new CardServiceException("PIN verification failed: " + aborted);
+			}
+			throw e;
+		} finally {
+			pinEntry.set(null);
+			for (IPinVerificationListener l : pinCallbacks) {
+				l.pinPadPinEntered(status);
+			}
+		}
+    }
 
-		for (IPinVerificationListener l : pinCallbacks) {
-			l.pinPadPinEntered();
+	/**
+	 * Aborts the PIN entry in progress, if any, using FEATURE_ABORT when the
+	 * reader supports it. This is best-effort: most readers do not offer
+	 * FEATURE_ABORT, and some refuse it, e.g. during a transaction. These
+	 * end the entry by the timeout in the PIN verify structure, which
+	 * reports it as aborted once it returns. The control command is sent on
+	 * the handle which waits for the entry, as PC/SC intends for aborting.
+	 * @param status The status with which the entry ends
+	 * @return Whether a PIN entry was in progress
+	 */
+	private boolean abortPinEntry(String status) {
+		if (!pinEntry.compareAndSet(PIN_ENTRY_IN_PROGRESS, status)) {
+			return false;
 		}
 
-		return processPinResponse(sw);
-    }
+		final Integer ioctl = features == null ? null : features.get(FEATURE_ABORT);
+		if (ioctl != null) {
+			AccessController.doPrivileged(new PrivilegedAction<Object>() {
+				public Object run() {
+					try {
+						service.transmitControlCommand(ioctl, new byte[0]);
+					} catch (CardServiceException e) {
+						e.printStackTrace();
+					}
+					return null;
+				}
+			});
+		}
+		return true;
+	}
 
     private int processPinResponse(int sw) throws CardServiceException {
         if(sw == 0x9000) {
@@ -180,114 +660,24 @@ public class CardHolderVerificationService extends CardService {
 
     static int IOCTL_GET_FEATURE_REQUEST = SCARD_CTL_CODE(3400);
 
-    protected void setUpReader() throws IOException, NoSuchAlgorithmException,
-            CardException {
-
-        String os = System.getProperty("os.name");
-
-        boolean pcsclite = os.toLowerCase().indexOf("windows") < 0;
-
-        String name = service.getTerminal().getName().toLowerCase();
-
-        if (name.startsWith("gemplus gempc pinpad")
-                || name.startsWith("gemalto gempc pinpad")) {
-            /*
-             * Gemplus Pinpad - VERIFY_PIN_DIRECT (42330006)
-             * [00:00:89:47:04:0c:00
-             * :02:01:09:04:00:00:00:00:0d:00:00:00:00:20:00
-             * :01:08:20:ff:ff:ff:ff:ff:ff:ff] Linux(?):
-             * transmitControlCommand() failed:
-             * sun.security.smartcardio.PCSCException: SCARD_E_NOT_TRANSACTED
-             * Win7: [6b:80] - VERIFY_PIN_DIRECT (42330006)
-             * [00:00:89:47:04:08:04
-             * :02:01:09:04:00:00:00:00:0d:00:00:00:00:20:00
-             * :01:08:20:ff:ff:ff:ff:ff:ff:ff] Linux(?): response [64:00]
-             * (18154msec) Win7 (mit bTimeOut 0x3c): [00:40:02:90:00:d2]
-             */
-            wPINMaxExtraDigitMin = 0x04;
-            wPINMaxExtraDigitMax = 0x08;
-        } else if (name.startsWith("reiner-sct cyberjack pinpad(a)")) {
-            // Reiner-SCT cyberJack pinpad(a) (2242245778) 00 00
-            /*
-             * VERIFY_PIN_DIRECT (42330006)
-             * [00:00:89:47:04:0c:00:02:01:09:04:00:
-             * 00:00:00:0d:00:00:00:00:20:00:01:08:20:ff:ff:ff:ff:ff:ff:ff]
-             * response [64:00] (14994msec)
-             */
-        } else if (name.startsWith("reiner sct cyberjack")) {
-            // REINER SCT CyberJack 00 00
-            /*
-             * VERIFY_PIN_DIRECT (42330006)
-             * [00:00:89:47:04:0c:00:02:01:09:04:00:
-             * 00:00:00:0d:00:00:00:00:20:00:01:08:20:ff:ff:ff:ff:ff:ff:ff]
-             * response [67:00]
-             */
-            // if (pcsclite) {
-            // TODO fallback to DefaultReader
-            // report.write("setting custom bTimeOut (0x0f) for " + name);
-            // bTimeOut = 0x0f;
-            // report.write("setting custom bTimeOut2 (0x0f) for " + name);
-            // bTimeOut2 = 0x0f;
-            // report.write("setting custom wPINMaxExtraDigitMin (0x04) for " +
-            // name);
-            // wPINMaxExtraDigitMin = 0x04;
-            // report.write("setting custom wPINMaxExtraDigitMax (0x08) for " +
-            // name);
-            // wPINMaxExtraDigitMax = 0x08;
-            // }
-        } else if (name.startsWith("omnikey cardman 3621")) {
-            // OmniKey CardMan 3621 00 00
-            /*
-             * VERIFY_PIN_DIRECT (42330006)
-             * [00:00:89:47:04:0c:00:02:01:09:04:00:
-             * 00:00:00:0d:00:00:00:00:20:00:01:08:20:ff:ff:ff:ff:ff:ff:ff]
-             * response [90:00] (5204msec)
-             */
-            // log.debug("setting custom wPINMaxExtraDigitH (0x01) for " +
-            // name);
-            // wPINMaxExtraDigitH = 0x01;
-        } else if (name.startsWith("scm spr 532")
-                || name.startsWith("scm microsystems inc. sprx32 usb smart card reader")) {
-            // SCM SPR 532 (60200DC5) 00 00
-            /*
-             * VERIFY_PIN_DIRECT (42330006)
-             * [00:00:89:47:04:0c:00:02:01:09:04:00:
-             * 00:00:00:0d:00:00:00:00:20:00:01:08:20:ff:ff:ff:ff:ff:ff:ff]
-             * transmitControlCommand() failed:
-             * sun.security.smartcardio.PCSCException: SCARD_E_NOT_TRANSACTED
-             * VERIFY_PIN_DIRECT (42330006)
-             * [00:00:89:47:04:0c:01:02:01:09:04:00:
-             * 00:00:00:0d:00:00:00:00:20:00:01:08:20:ff:ff:ff:ff:ff:ff:ff]
-             * response [64:00] (15543msec)
-             */
-            if (pcsclite) {
-                wPINMaxExtraDigitMin = 0x01;
-            }
-        } else if (name.startsWith("cherry smartboard xx44")) {
-            if (pcsclite) {
-                wPINMaxExtraDigitMin = 0x01;
-            }
-        } else if (name.startsWith("cherry smartterminal st-2xxx")) {
-            // Cherry SmartTerminal ST-2XXX (21121010102014) 00 00
-            /*
-             * VERIFY_PIN_DIRECT (42330006)
-             * [00:00:89:47:04:0c:00:02:01:09:04:00:
-             * 00:00:00:0d:00:00:00:00:20:00:01:08:20:ff:ff:ff:ff:ff:ff:ff]
-             * transmitControlCommand() failed:
-             * sun.security.smartcardio.PCSCException: SCARD_E_NOT_TRANSACTED
-             * VERIFY_PIN_DIRECT (42330006)
-             * [00:00:89:47:04:0c:01:02:01:09:04:00:
-             * 00:00:00:0d:00:00:00:00:20:00:01:08:20:ff:ff:ff:ff:ff:ff:ff]
-             * response [64:00] (15358msec)
-             */
-            if (pcsclite) {
-                wPINMaxExtraDigitMin = 0x01;
-            }
-        }
+    protected void setUpReader() {
+        profile = readerProfiles.lookup(service.getTerminal().getName());
     }
 
 	protected void queryFeatures() throws CardServiceException {
+		String reader = service.getTerminal().getName();
+		CapabilityCache capabilityCache = this.capabilityCache;
+		if (capabilityCache != null) {
+			CapabilityCache.Capabilities cached = capabilityCache.get(reader);
+			if (cached != null) {
+				features = cached.getFeatures();
+				pinProperties = cached.getPinProperties();
+				return;
+			}
+		}
+
 		features = new HashMap<Byte, Integer>();
+		pinProperties = new byte[0];
 
 		try {
 			byte[] resp = service.transmitControlCommand(
@@ -300,6 +690,16 @@ public class CardHolderVerificationService extends CardService {
 						| ((0xff & resp[i + 4]) << 8) | (0xff & resp[i + 5]);
 				features.put(feature, ioctl);
 			}
+
+			if (features.containsKey(FEATURE_IFD_PIN_PROPERTIES)) {
+				pinProperties = service.transmitControlCommand(
+						features.get(FEATURE_IFD_PIN_PROPERTIES), new byte[0]);
+			}
+
+			if (capabilityCache != null) {
+				capabilityCache.put(reader, new CapabilityCache.Capabilities(
+						features, pinProperties));
+			}
 		} catch (Exception e) {
 			// Apperently we cannot query features, assuming no features
 			// present;
@@ -317,72 +717,31 @@ public class CardHolderVerificationService extends CardService {
     }
 
     protected byte[] createPINVerifyStructure() {
-
-        // VerifyAPDUSpec apduSpec = new VerifyAPDUSpec(
-        byte[] apdu = new byte[] { (byte) 0x00, (byte) 0x20, (byte) 0x00,
-                (byte) 0x00, (byte) 0x04, (byte) 0x00, (byte) 0x00,
-                (byte) 0x00, (byte) 0x00 };
-        // 1, VerifyAPDUSpec.PIN_FORMAT_BCD, 7, 4, 4);
-
-        ByteArrayOutputStream s = new ByteArrayOutputStream();
-        // bTimeOut
-        s.write(bTimeOut);
-        // bTimeOut2
-        s.write(bTimeOut2);
-        // bmFormatString [10001001 0x89]
-        s.write(0x82);
-//        s.write(1 << 7 // system unit = byte
-//                | (0xF & 1) << 3 // apduSpec.getPinPosition() (0001 ... pin 1
-//                                 // byte after format)
-//                | (0x1 & 0 << 2) // apduSpec.getPinJustification() (0 ... left
-//                                 // justify)
-//                | (0x3 & 1)); // apduSpec.getPinFormat() (01 ... BCD)
-        // bmPINBlockString [01000111 0x47]
-        s.write(0x04);
-//        s.write((0xF & 4) << 4 // apduSpec.getPinLengthSize() (0100 ... 4 bit
-//                               // pin length)
-//                | (0xF & 7)); // apduSpec.getPinLength() (0111 ... 7 bytes pin
-//                              // block size)
-        // bmPINLengthFormat [00000100 0x04]
-        s.write(0x00);
-//        s.write(// system unit = bit
-//        (0xF & 4)); // apduSpec.getPinLengthPos() (00000100 ... pin length
-//                    // position 4 bits)
-        // wPINMaxExtraDigit (little endian) [0x0c 0x00]
-        s.write(wPINMaxExtraDigitMax); // max PIN length
-        s.write(wPINMaxExtraDigitMin); // min PIN length
-        // bEntryValidationCondition [0x02]
-        s.write(bEntryValidationCondition);
-        // bNumberMessage
-        s.write(0x01);
-        // wLangId [0x04 0x09 english, little endian]
-        s.write(0x04);
-        s.write(0x09);
-        // bMsgIndex
-        s.write(0x01);
-        // bTeoPrologue
-        s.write(0x00);
-        s.write(0x00);
-        s.write(0x00);
-        // ulDataLength
-        s.write(apdu.length);
-        s.write(0x00);
-        s.write(0x00);
-        s.write(0x00);
-        // abData
-        try {
-            s.write(apdu);
-        } catch (IOException e) {
-            // As we are dealing with ByteArrayOutputStreams no exception is to
-            // be
-            // expected.
-            throw new RuntimeException(e);
+        ReaderProfile profile = this.profile;
+        if (profile == null) {
+            setUpReader();
+            profile = this.profile;
         }
-
-        return s.toByteArray();
+        long seconds = (pinPadTimeout + 999) / 1000;
+        return profile.createPINVerifyStructure((int) Math.max(1, Math.min(255, seconds)));
     }
 
+	/**
+	 * Gets the ATR of the card, which is only read from the card once.
+	 * @return The ATR
+	 * @throws CardServiceException if the ATR cannot be read
+	 */
 	public byte[] getATR() throws CardServiceException {
-		return service.getATR();
+		return getCachedATR().clone();
+	}
+
+	/**
+	 * Gets the ATR of the card if it was read before, without communicating
+	 * with the card.
+	 * @return The ATR, or null if it was not read yet
+	 */
+	public byte[] getKnownATR() {
+		byte[] known = atr;
+		return known == null ? null : known.clone();
 	}
 }
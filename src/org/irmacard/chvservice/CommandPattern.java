@@ -0,0 +1,73 @@
+package org.irmacard.chvservice;
+
+/**
+ * Pattern of APDU commands, as used to mark commands as cacheable and by the
+ * rules of simulated cards. The pattern consists of hex-encoded bytes, where
+ * ".." matches any byte and a trailing "*" matches any remainder of the
+ * command; whitespace is ignored, e.g. "00A40400 *" or "00B0 8100 ..".
+ */
+public class CommandPattern {
+
+	private final byte[] bytes;
+	private final boolean[] wildcard;
+	private final boolean prefix;
+
+	/**
+	 * @param pattern The pattern
+	 * @exception IllegalArgumentException if the pattern is malformed
+	 */
+	public CommandPattern(String pattern) {
+		String spec = pattern.replaceAll("\\s+", "");
+		prefix = spec.endsWith("*");
+		if (prefix) {
+			spec = spec.substring(0, spec.length() - 1);
+		}
+		if ((spec.length() & 1) != 0 || (spec.length() == 0 && !prefix)) {
+			throw new IllegalArgumentException("invalid command pattern: " + pattern);
+		}
+
+		bytes = new byte[spec.length() / 2];
+		wildcard = new boolean[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			char high = spec.charAt(2 * i);
+			char low = spec.charAt(2 * i + 1);
+			if (high == '.' && low == '.') {
+				wildcard[i] = true;
+			} else {
+				int h = Character.digit(high, 16);
+				int l = Character.digit(low, 16);
+				if (h < 0 || l < 0) {
+					throw new IllegalArgumentException("invalid command pattern: " + pattern);
+				}
+				bytes[i] = (byte) (h << 4 | l);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a command matches the pattern.
+	 * @param command The encoded command
+	 * @return Whether the command matches
+	 */
+	public boolean matches(byte[] command) {
+		return matches(command, command.length);
+	}
+
+	/**
+	 * Checks whether a command matches the pattern.
+	 * @param command The array holding the encoded command
+	 * @param length The length of the command
+	 * @return Whether the command matches
+	 */
+	public boolean matches(byte[] command, int length) {
+		if (length < bytes.length || (!prefix && length != bytes.length)) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			if (!wildcard[i] && command[i] != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
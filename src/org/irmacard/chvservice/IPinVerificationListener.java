@@ -1,6 +1,27 @@
 package org.irmacard.chvservice;
 
 public interface IPinVerificationListener {
+
+	/**
+	 * Status of a PIN-pad entry which the user completed; whether the PIN
+	 * was correct follows from the verification result.
+	 */
+	public static final String PIN_PAD_ENTERED = "entered";
+
+	/**
+	 * Status of a PIN-pad entry which was aborted after the timeout.
+	 */
+	public static final String PIN_PAD_TIMEOUT = "timeout";
+
+	/**
+	 * Status of a PIN-pad entry which was cancelled.
+	 */
+	public static final String PIN_PAD_CANCELLED = "cancelled";
+
+	/**
+	 * Status of a PIN-pad entry which failed otherwise.
+	 */
+	public static final String PIN_PAD_FAILED = "failed";
 	
 	/**
 	 * Called when user-pin is required. When called the first time
@@ -23,7 +44,11 @@ public interface IPinVerificationListener {
 	public void pinPadPinRequired(Integer nr_tries_left);
 	
 	/**
-	 * Called to notify that pin-pad action has been performed by the user.
+	 * Called to notify that the pin-pad entry has ended, which happens after
+	 * every call of pinPadPinRequired.
+	 * 
+	 * @param status
+	 *            How the entry ended, one of the PIN_PAD_ statuses.
 	 */
-	public void pinPadPinEntered();
+	public void pinPadPinEntered(String status);
 }
@@ -0,0 +1,139 @@
+package org.irmacard.chvservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * The PIN-pad quirks of a type of reader, as the fields of the PIN verify
+ * structure for VERIFY_PIN_DIRECT. The structure is built once per profile.
+ */
+public class ReaderProfile {
+
+    byte bEntryValidationCondition = 0x02;  // validation key pressed
+    byte bTimeOut = 0x00;                   // 0x3c;                   // 60sec (= max on ReinerSCT)
+    byte bTimeOut2 = 0x00;                  // default (attention with SCM)
+    byte wPINMaxExtraDigitMin = 0x00;         // min pin length zero digits
+    byte wPINMaxExtraDigitMax = 0x04;         // max pin length 12 digits
+
+    private byte[] template;
+
+    /**
+     * Sets a field of the PIN verify structure.
+     * @param field The name of the field
+     * @param value The value of the field
+     * @exception IllegalArgumentException if there is no such field
+     */
+    synchronized void set(String field, byte value) {
+        if (field.equals("bEntryValidationCondition")) {
+            bEntryValidationCondition = value;
+        } else if (field.equals("bTimeOut")) {
+            bTimeOut = value;
+        } else if (field.equals("bTimeOut2")) {
+            bTimeOut2 = value;
+        } else if (field.equals("wPINMaxExtraDigitMin")) {
+            wPINMaxExtraDigitMin = value;
+        } else if (field.equals("wPINMaxExtraDigitMax")) {
+            wPINMaxExtraDigitMax = value;
+        } else {
+            throw new IllegalArgumentException("unknown field: " + field);
+        }
+        template = null;
+    }
+
+    /**
+     * Creates the PIN verify structure for this profile.
+     * @return A copy of the PIN verify structure
+     */
+    public synchronized byte[] createPINVerifyStructure() {
+        if (template == null) {
+            template = buildPINVerifyStructure();
+        }
+        return template.clone();
+    }
+
+    /**
+     * Creates the PIN verify structure for this profile, with the time the
+     * user gets to enter the PIN patched into bTimeOut and bTimeOut2. A
+     * timeout set by the profile, such as the maximum a reader accepts, is
+     * kept when it is shorter.
+     * @param timeout The time in seconds, from 1 to 255
+     * @return A copy of the PIN verify structure
+     */
+    public synchronized byte[] createPINVerifyStructure(int timeout) {
+        byte[] structure = createPINVerifyStructure();
+        structure[0] = limitTimeOut(bTimeOut, timeout);
+        structure[1] = limitTimeOut(bTimeOut2, timeout);
+        return structure;
+    }
+
+    private static byte limitTimeOut(byte configured, int timeout) {
+        int seconds = configured & 0xFF;
+        return (byte) (seconds != 0 && seconds < timeout ? seconds : timeout);
+    }
+
+    private byte[] buildPINVerifyStructure() {
+
+        // VerifyAPDUSpec apduSpec = new VerifyAPDUSpec(
+        byte[] apdu = new byte[] { (byte) 0x00, (byte) 0x20, (byte) 0x00,
+                (byte) 0x00, (byte) 0x04, (byte) 0x00, (byte) 0x00,
+                (byte) 0x00, (byte) 0x00 };
+        // 1, VerifyAPDUSpec.PIN_FORMAT_BCD, 7, 4, 4);
+
+        ByteArrayOutputStream s = new ByteArrayOutputStream();
+        // bTimeOut
+        s.write(bTimeOut);
+        // bTimeOut2
+        s.write(bTimeOut2);
+        // bmFormatString [10001001 0x89]
+        s.write(0x82);
+//        s.write(1 << 7 // system unit = byte
+//                | (0xF & 1) << 3 // apduSpec.getPinPosition() (0001 ... pin 1
+//                                 // byte after format)
+//                | (0x1 & 0 << 2) // apduSpec.getPinJustification() (0 ... left
+//                                 // justify)
+//                | (0x3 & 1)); // apduSpec.getPinFormat() (01 ... BCD)
+        // bmPINBlockString [01000111 0x47]
+        s.write(0x04);
+//        s.write((0xF & 4) << 4 // apduSpec.getPinLengthSize() (0100 ... 4 bit
+//                               // pin length)
+//                | (0xF & 7)); // apduSpec.getPinLength() (0111 ... 7 bytes pin
+//                              // block size)
+        // bmPINLengthFormat [00000100 0x04]
+        s.write(0x00);
+//        s.write(// system unit = bit
+//        (0xF & 4)); // apduSpec.getPinLengthPos() (00000100 ... pin length
+//                    // position 4 bits)
+        // wPINMaxExtraDigit (little endian) [0x0c 0x00]
+        s.write(wPINMaxExtraDigitMax); // max PIN length
+        s.write(wPINMaxExtraDigitMin); // min PIN length
+        // bEntryValidationCondition [0x02]
+        s.write(bEntryValidationCondition);
+        // bNumberMessage
+        s.write(0x01);
+        // wLangId [0x04 0x09 english, little endian]
+        s.write(0x04);
+        s.write(0x09);
+        // bMsgIndex
+        s.write(0x01);
+        // bTeoPrologue
+        s.write(0x00);
+        s.write(0x00);
+        s.write(0x00);
+        // ulDataLength
+        s.write(apdu.length);
+        s.write(0x00);
+        s.write(0x00);
+        s.write(0x00);
+        // abData
+        try {
+            s.write(apdu);
+        } catch (IOException e) {
+            // As we are dealing with ByteArrayOutputStreams no exception is to
+            // be
+            // expected.
+            throw new RuntimeException(e);
+        }
+
+        return s.toByteArray();
+    }
+}
@@ -0,0 +1,153 @@
+package org.irmacard.chvservice;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of reader profiles, looked up by the longest prefix of the reader
+ * name for which a profile is known. The bundled profiles are read from
+ * reader-profiles.txt; deployments can load additional profiles in the same
+ * format.
+ */
+public class ReaderProfiles {
+
+	private static ReaderProfiles defaultProfiles = null;
+
+	/**
+	 * Node of the prefix trie, holding the profile of its prefix, if any.
+	 */
+	private static class Node {
+		final Map<Character, Node> children = new HashMap<Character, Node>();
+		ReaderProfile profile = null;
+	}
+
+	private final boolean pcsclite;
+	private final ReaderProfile defaultProfile = new ReaderProfile();
+	private final Node root = new Node();
+
+	/**
+	 * Creates an empty registry, which returns the default profile for any
+	 * reader.
+	 */
+	public ReaderProfiles() {
+		String os = System.getProperty("os.name");
+		pcsclite = os.toLowerCase().indexOf("windows") < 0;
+	}
+
+	/**
+	 * Gets the registry of bundled profiles.
+	 * @return The registry of bundled profiles
+	 */
+	public static synchronized ReaderProfiles getDefault() {
+		if (defaultProfiles == null) {
+			defaultProfiles = new ReaderProfiles();
+			InputStream in = ReaderProfiles.class.getResourceAsStream(
+					"reader-profiles.txt");
+			if (in != null) {
+				try {
+					defaultProfiles.load(in);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return defaultProfiles;
+	}
+
+	/**
+	 * Adds the profiles read from a stream, replacing those with the same
+	 * prefix. Each line holds a reader name prefix, a colon and a whitespace
+	 * separated list of field=value settings; a field preceded by
+	 * "pcsclite." only applies when pcsc-lite is used. Lines starting with
+	 * '#' are ignored.
+	 * @param in The stream to read from, which is closed afterwards
+	 * @throws IOException if the stream cannot be read or is malformed
+	 */
+	public void load(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(in, "UTF-8"));
+		try {
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+
+				int colon = line.lastIndexOf(':');
+				if (colon <= 0) {
+					throw new IOException("line " + number + ": missing ':'");
+				}
+
+				ReaderProfile profile = new ReaderProfile();
+				String settings = line.substring(colon + 1).trim();
+				if (settings.length() > 0) {
+					for (String setting : settings.split("\\s+")) {
+						try {
+							apply(profile, setting);
+						} catch (IllegalArgumentException e) {
+							throw new IOException("line " + number + ": " + e.getMessage());
+						}
+					}
+				}
+				put(line.substring(0, colon).trim().toLowerCase(), profile);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void apply(ReaderProfile profile, String setting) {
+		int equals = setting.indexOf('=');
+		if (equals < 0) {
+			throw new IllegalArgumentException("invalid setting: " + setting);
+		}
+
+		String field = setting.substring(0, equals);
+		if (field.startsWith("pcsclite.")) {
+			if (!pcsclite) {
+				return;
+			}
+			field = field.substring("pcsclite.".length());
+		}
+		profile.set(field, Integer.decode(setting.substring(equals + 1)).byteValue());
+	}
+
+	private synchronized void put(String prefix, ReaderProfile profile) {
+		Node node = root;
+		for (int i = 0; i < prefix.length(); i++) {
+			Character c = prefix.charAt(i);
+			Node child = node.children.get(c);
+			if (child == null) {
+				child = new Node();
+				node.children.put(c, child);
+			}
+			node = child;
+		}
+		node.profile = profile;
+	}
+
+	/**
+	 * Gets the profile for a reader.
+	 * @param readerName The name of the reader
+	 * @return The profile with the longest prefix of the name, or the
+	 *         default profile if there is none
+	 */
+	public synchronized ReaderProfile lookup(String readerName) {
+		ReaderProfile profile = defaultProfile;
+		Node node = root;
+		for (int i = 0; i < readerName.length() && node != null; i++) {
+			node = node.children.get(Character.toLowerCase(readerName.charAt(i)));
+			if (node != null && node.profile != null) {
+				profile = node.profile;
+			}
+		}
+		return profile;
+	}
+}
@@ -0,0 +1,223 @@
+package org.irmacard.chvservice;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the responses to commands which the deployment marks as
+ * cacheable, such as the SELECT of an applet or READ BINARY of read-only
+ * files. Responses are kept per card, identified by the reader and the ATR,
+ * and per selected application. The cache holds a bounded number of
+ * responses and evicts the least recently used ones.
+ *
+ * The services invalidate the responses of their card when it may no longer
+ * answer the same: on a command which changes the state of the card, see
+ * isStateChanging(), and on a SELECT of another application or file, which
+ * resets the security status.
+ */
+public class ResponseCache {
+
+	/**
+	 * Default number of cached responses.
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Identifies a cached response.
+	 */
+	static class Key {
+		final String reader;
+		final byte[] atr;
+		final byte[] selected;
+		final byte[] command;
+		private final int hash;
+
+		Key(String reader, byte[] atr, byte[] selected, byte[] command) {
+			this.reader = reader;
+			this.atr = atr;
+			this.selected = selected;
+			this.command = command;
+			this.hash = ((reader.hashCode() * 31 + Arrays.hashCode(atr)) * 31
+					+ Arrays.hashCode(selected)) * 31 + Arrays.hashCode(command);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return hash == other.hash && reader.equals(other.reader)
+					&& Arrays.equals(atr, other.atr)
+					&& Arrays.equals(selected, other.selected)
+					&& Arrays.equals(command, other.command);
+		}
+	}
+
+	/**
+	 * Instructions of the interindustry commands which change the content of
+	 * files or data objects, the reference data or the security status of
+	 * the card, or the logical channels: DEACTIVATE FILE (04), ERASE BINARY
+	 * (0E, 0F), ERASE RECORD (0C), VERIFY (20, 21), MANAGE SECURITY
+	 * ENVIRONMENT (22), CHANGE REFERENCE DATA (24), DISABLE and ENABLE
+	 * VERIFICATION REQUIREMENT (26, 28), RESET RETRY COUNTER (2C), ACTIVATE
+	 * FILE (44), MANAGE CHANNEL (70), EXTERNAL and GENERAL AUTHENTICATE (82,
+	 * 86, 87), WRITE BINARY (D0, D1), WRITE RECORD (D2), UPDATE BINARY (D6,
+	 * D7), PUT DATA (DA, DB), UPDATE RECORD (DC, DD), CREATE FILE (E0),
+	 * APPEND RECORD (E2), DELETE FILE (E4), TERMINATE DF and EF (E6, E8) and
+	 * TERMINATE CARD USAGE (FE).
+	 */
+	private static final int[] STATE_CHANGING_INS = {
+		0x04, 0x0C, 0x0E, 0x0F, 0x20, 0x21, 0x22, 0x24, 0x26, 0x28, 0x2C,
+		0x44, 0x70, 0x82, 0x86, 0x87, 0xD0, 0xD1, 0xD2, 0xD6, 0xD7, 0xDA,
+		0xDB, 0xDC, 0xDD, 0xE0, 0xE2, 0xE4, 0xE6, 0xE8, 0xFE
+	};
+
+	private final List<CommandPattern> cacheable = new CopyOnWriteArrayList<CommandPattern>();
+	private final Map<Key, byte[]> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param capacity The maximum number of cached responses
+	 */
+	public ResponseCache(final int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		entries = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Marks the commands matching a pattern as cacheable.
+	 * @param pattern The pattern, see CommandPattern
+	 */
+	public void addCacheable(String pattern) {
+		cacheable.add(new CommandPattern(pattern));
+	}
+
+	/**
+	 * Checks whether any commands are marked as cacheable.
+	 * @return Whether there are cacheable commands
+	 */
+	public boolean isEnabled() {
+		return !cacheable.isEmpty();
+	}
+
+	/**
+	 * Checks whether a command is marked as cacheable.
+	 * @param command The encoded command
+	 * @return Whether the response to the command may be cached
+	 */
+	public boolean isCacheable(byte[] command) {
+		for (CommandPattern pattern : cacheable) {
+			if (pattern.matches(command)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a command may change the state of the card, so the
+	 * cached responses of the card have to be discarded. These are the
+	 * interindustry commands listed in STATE_CHANGING_INS, and all commands
+	 * of a proprietary class, whose effect is unknown. Other commands, such
+	 * as READ BINARY, GET DATA, GET RESPONSE and GET CHALLENGE, leave the
+	 * cached responses alone. Cacheable commands are never state-changing.
+	 * @param command The encoded command
+	 * @return Whether the command may change the state of the card
+	 */
+	public boolean isStateChanging(byte[] command) {
+		if (command.length < 2 || isCacheable(command)) {
+			return false;
+		}
+		int cla = command[0] & 0xFF;
+		if ((cla & 0x80) != 0 && cla != 0xFF) {
+			return true;
+		}
+		int ins = command[1] & 0xFF;
+		for (int i = 0; i < STATE_CHANGING_INS.length; i++) {
+			if (STATE_CHANGING_INS[i] == ins) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets a cached response.
+	 * @param reader The name of the reader holding the card
+	 * @param atr The ATR of the card
+	 * @param selected The SELECT command of the current application, or
+	 *            null if none was sent
+	 * @param command The encoded command
+	 * @return The encoded response, or null if it is not cached
+	 */
+	public byte[] get(String reader, byte[] atr, byte[] selected, byte[] command) {
+		byte[] response;
+		synchronized (this) {
+			response = entries.get(new Key(reader, atr, selected, command));
+		}
+		(response == null ? misses : hits).incrementAndGet();
+		return response == null ? null : response.clone();
+	}
+
+	/**
+	 * Stores a response.
+	 * @param reader The name of the reader holding the card
+	 * @param atr The ATR of the card
+	 * @param selected The SELECT command of the current application, or
+	 *            null if none was sent
+	 * @param command The encoded command
+	 * @param response The encoded response
+	 */
+	public void put(String reader, byte[] atr, byte[] selected, byte[] command,
+			byte[] response) {
+		Key key = new Key(reader, atr, selected, command.clone());
+		synchronized (this) {
+			entries.put(key, response.clone());
+		}
+	}
+
+	/**
+	 * Discards the responses of the card in a reader.
+	 * @param reader The name of the reader
+	 */
+	public synchronized void invalidate(String reader) {
+		for (Iterator<Key> i = entries.keySet().iterator(); i.hasNext(); ) {
+			if (i.next().reader.equals(reader)) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Discards all responses.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+}
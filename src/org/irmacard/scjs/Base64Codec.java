@@ -0,0 +1,133 @@
+package org.irmacard.scjs;
+
+/**
+ * Table-driven encoder and decoder for base64-encoded byte-arrays (RFC 4648,
+ * with padding), as used by the WebSocket handshake and for APDUs in text
+ * messages.
+ */
+public final class Base64Codec {
+
+    /**
+     * Digits used for encoding, indexed by sextet value.
+     */
+    private static final char[] DIGITS = 
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    /**
+     * Sextet values used for decoding, indexed by character; -1 marks
+     * characters which are not base64 digits.
+     */
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < DIGITS.length; i++) {
+            VALUES[DIGITS[i]] = (byte) i;
+        }
+    }
+
+    private Base64Codec() {
+    }
+
+    /**
+     * Encode a byte-array as a padded base64 string.
+     *
+     * @param bytes the bytes to encode.
+     * @return the base64-encoded bytes.
+     */
+    public static String encode(byte[] bytes) {
+        return encode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Encode part of a byte-array as a padded base64 string.
+     *
+     * @param bytes the array holding the bytes to encode.
+     * @param offset the index of the first byte to encode.
+     * @param length the number of bytes to encode.
+     * @return the base64-encoded bytes.
+     */
+    public static String encode(byte[] bytes, int offset, int length) {
+        char[] chars = new char[(length + 2) / 3 * 4];
+        int end = offset + length;
+        int i = offset;
+        int j = 0;
+
+        while (end - i >= 3) {
+            int block = (bytes[i++] & 0xFF) << 16 | (bytes[i++] & 0xFF) << 8 
+                    | (bytes[i++] & 0xFF);
+            chars[j++] = DIGITS[block >> 18];
+            chars[j++] = DIGITS[(block >> 12) & 0x3F];
+            chars[j++] = DIGITS[(block >> 6) & 0x3F];
+            chars[j++] = DIGITS[block & 0x3F];
+        }
+
+        if (i < end) {
+            int block = (bytes[i++] & 0xFF) << 16;
+            boolean two = i < end;
+            if (two) {
+                block |= (bytes[i] & 0xFF) << 8;
+            }
+            chars[j++] = DIGITS[block >> 18];
+            chars[j++] = DIGITS[(block >> 12) & 0x3F];
+            chars[j++] = two ? DIGITS[(block >> 6) & 0x3F] : '=';
+            chars[j++] = '=';
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Decode a base64 string into a new byte-array. Padding is optional, 
+     * other characters than base64 digits are rejected.
+     *
+     * @param base64 the base64-encoded bytes.
+     * @return the decoded bytes.
+     * @exception IllegalArgumentException if the input is not valid.
+     */
+    public static byte[] decode(String base64) {
+        int length = base64.length();
+        while (length > 0 && base64.charAt(length - 1) == '=') {
+            length--;
+        }
+        if (base64.length() - length > 2 || length % 4 == 1) {
+            throw new IllegalArgumentException(
+                    "invalid base64 length: " + base64.length());
+        }
+
+        byte[] bytes = new byte[length * 3 / 4];
+        int count = 0;
+        int block = 0;
+        for (int i = 0; i < length; i++) {
+            char c = base64.charAt(i);
+            int sextet = c < VALUES.length ? VALUES[c] : -1;
+            if (sextet < 0) {
+                throw new IllegalArgumentException(
+                        "invalid base64 digit '" + c + "' at index " + i);
+            }
+
+            block = block << 6 | sextet;
+            if ((i & 3) == 3) {
+                bytes[count++] = (byte) (block >> 16);
+                bytes[count++] = (byte) (block >> 8);
+                bytes[count++] = (byte) block;
+                block = 0;
+            }
+        }
+
+        switch (length & 3) {
+        case 2:
+            bytes[count] = (byte) (block >> 4);
+            break;
+        case 3:
+            bytes[count++] = (byte) (block >> 10);
+            bytes[count] = (byte) (block >> 2);
+            break;
+        }
+
+        return bytes;
+    }
+}
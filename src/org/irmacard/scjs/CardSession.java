@@ -0,0 +1,361 @@
+package org.irmacard.scjs;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import org.irmacard.chvservice.CardHolderVerificationService;
+
+/**
+ * Connection to the card in a single reader. Operations on a session are
+ * executed one at a time by a thread of its own, so operations on different
+ * readers run in parallel while those on the same reader are serialised.
+ */
+public class CardSession {
+
+    /**
+     * Default time in milliseconds after which a transaction without any
+     * operations is ended by the watchdog.
+     */
+    public static final long DEFAULT_TRANSACTION_TIMEOUT = 30000;
+
+    /**
+     * Watchdog which ends transactions which the page abandoned.
+     */
+    private static final ScheduledExecutorService watchdog =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SmartCardJS transaction watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Handle by which the session is known to the page.
+     */
+    private final int handle;
+
+    /**
+     * Name of the reader holding the card.
+     */
+    private final String reader;
+
+    /**
+     * Service used to communicate with the card.
+     */
+    private final CardHolderVerificationService service;
+
+    /**
+     * Serial executor for the operations on this session.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Time at which the last operation in the current transaction started or
+     * finished, in nanoseconds.
+     */
+    private volatile long lastActivity;
+
+    /**
+     * Number of the current transaction, to tell the watchdog of an ended
+     * transaction apart from that of a new one; 0 if none is in progress.
+     */
+    private final AtomicInteger transaction = new AtomicInteger();
+
+    /**
+     * Number of the next transaction.
+     */
+    private int nextTransaction = 1;
+
+    /**
+     * Whether the service was opened, guarded by this session.
+     */
+    private boolean opened = false;
+
+    /**
+     * Whether the session was closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Construct a new session for a card service, which is opened by open().
+     *
+     * @param handle the handle by which the session is known.
+     * @param reader the name of the reader holding the card.
+     * @param service the service to communicate with the card.
+     */
+    CardSession(int handle, String reader, CardHolderVerificationService service) {
+        this.handle = handle;
+        this.reader = reader;
+        this.service = service;
+
+        final String name = "SmartCardJS session " + handle + " (" + reader + ")";
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getHandle() {
+        return handle;
+    }
+
+    public String getReader() {
+        return reader;
+    }
+
+    public CardHolderVerificationService getService() {
+        return service;
+    }
+
+    /**
+     * Open the service on the thread of this session, unless that was done
+     * before. Callers connecting to the same reader wait for each other
+     * here, without holding up those of other readers.
+     *
+     * @exception CardServiceException if the card could not be opened or the
+     *            session was closed.
+     */
+    synchronized void open() throws CardServiceException {
+        if (closed) {
+            throw new CardServiceException("Session closed.");
+        } else if (opened) {
+            return;
+        }
+        try {
+            execute(new PrivilegedExceptionAction<Object>() {
+                public Object run() throws CardServiceException {
+                    service.open();
+                    return null;
+                }
+            });
+        } catch (PrivilegedActionException e) {
+            if (e.getException() instanceof CardServiceException) {
+                throw (CardServiceException) e.getException();
+            }
+            throw new CardServiceException(e.getException().toString());
+        } catch (RejectedExecutionException e) {
+            throw new CardServiceException("Session closed.");
+        }
+        opened = true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Perform a privileged action on the thread of this session and wait for
+     * its outcome.
+     *
+     * @param action the action to be performed.
+     * @return the result of the action.
+     * @exception PrivilegedActionException if the action threw a checked
+     *            exception or the wait was interrupted.
+     */
+    public <T> T execute(final PrivilegedExceptionAction<T> action)
+            throws PrivilegedActionException {
+        touch();
+        try {
+            return executor.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    try {
+                        return AccessController.doPrivileged(action);
+                    } finally {
+                        touch();
+                    }
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PrivilegedActionException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PrivilegedActionException) {
+                throw (PrivilegedActionException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new PrivilegedActionException((Exception) cause);
+        }
+    }
+
+    /**
+     * Perform a privileged action on the thread of this session without
+     * waiting for it. Actions run in the order in which they were submitted,
+     * also relative to those passed to execute().
+     *
+     * @param action the action to be performed.
+     * @exception RejectedExecutionException if the session was closed.
+     */
+    public void submit(final PrivilegedAction<?> action) {
+        touch();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    AccessController.doPrivileged(action);
+                } finally {
+                    touch();
+                }
+            }
+        });
+    }
+
+    /**
+     * Record activity in the current transaction, if any.
+     */
+    private void touch() {
+        if (transaction.get() != 0) {
+            lastActivity = System.nanoTime();
+        }
+    }
+
+    /**
+     * Get exclusive access to the card for a sequence of operations, until
+     * endTransaction is called or no operation has been performed for the
+     * given time.
+     *
+     * @param timeout the time in milliseconds after which an idle 
+     *        transaction is ended.
+     * @exception PrivilegedActionException if exclusive access could not be
+     *            obtained.
+     */
+    public synchronized void beginTransaction(final long timeout)
+            throws PrivilegedActionException {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("invalid transaction timeout: " + timeout);
+        }
+        execute(new PrivilegedExceptionAction<Object>() {
+            public Object run() throws CardServiceException {
+                service.beginTransaction();
+                return null;
+            }
+        });
+
+        int current = nextTransaction++;
+        lastActivity = System.nanoTime();
+        transaction.set(current);
+        watch(current, timeout, timeout);
+    }
+
+    /**
+     * Let the watchdog check a transaction for idleness after a delay. The
+     * shared watchdog never waits for a session: an idle transaction is
+     * ended by a task on the thread of the session, which runs after the
+     * operation in progress and checks the idle time again.
+     */
+    private void watch(final int current, final long timeout, long delay) {
+        watchdog.schedule(new Runnable() {
+            public void run() {
+                if (transaction.get() != current) {
+                    return;
+                }
+                long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+                if (idle < timeout) {
+                    watch(current, timeout, timeout - idle);
+                    return;
+                }
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            expire(current, timeout);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // The session was closed, which released the card
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * End a transaction if it is still idle; runs on the thread of this
+     * session.
+     */
+    private void expire(int current, long timeout) {
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+        if (transaction.get() != current) {
+            return;
+        } else if (idle < timeout) {
+            watch(current, timeout, timeout - idle);
+        } else if (transaction.compareAndSet(current, 0)) {
+            AccessController.doPrivileged(new PrivilegedAction<Object>() {
+                public Object run() {
+                    try {
+                        service.endTransaction();
+                    } catch (CardServiceException e) {
+                        e.printStackTrace();
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Release the exclusive access to the card.
+     *
+     * @return whether a transaction was in progress.
+     */
+    public boolean endTransaction() {
+        int current = transaction.get();
+        if (current == 0 || !transaction.compareAndSet(current, 0)) {
+            return false;
+        }
+        try {
+            return execute(new PrivilegedExceptionAction<Boolean>() {
+                public Boolean run() throws CardServiceException {
+                    return service.endTransaction();
+                }
+            });
+        } catch (PrivilegedActionException e) {
+            e.printStackTrace();
+            return false;
+        } catch (RejectedExecutionException e) {
+            // The session was closed, which released the card
+            return false;
+        }
+    }
+
+    public boolean isInTransaction() {
+        return transaction.get() != 0;
+    }
+
+    /**
+     * Close the service once the pending operations have completed and stop
+     * the thread of this session.
+     */
+    void close() {
+        closed = true;
+        transaction.set(0);
+        executor.execute(new Runnable() {
+            public void run() {
+                AccessController.doPrivileged(new PrivilegedAction<Object>() {
+                    public Object run() {
+                        service.close();
+                        return null;
+                    }
+                });
+            }
+        });
+        executor.shutdown();
+    }
+}
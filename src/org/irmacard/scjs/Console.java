@@ -3,14 +3,61 @@ package org.irmacard.scjs;
 import java.applet.Applet;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Console to generate output messages up to a certain level.  
  */
 public class Console implements SignalHandler {
 
+    /**
+     * The levels of generated output.
+     */
+    public enum Level {
+        FATAL(true), 
+        ERROR(true), 
+        WARNING(true), 
+        INFO(false), 
+        LOG(false), 
+        DEBUG(false), 
+        TRACE_APDU(false), 
+        TRACE_CALL(false);
+        
+        /**
+         * The bit which represents this level in an output filter.
+         */
+        final int mask = 1 << ordinal();
+        
+        /**
+         * Whether output of this level goes to the error output stream.
+         */
+        final boolean error;
+        
+        /**
+         * The tag which precedes output of this level.
+         */
+        final String tag = String.format("[%-8s ", name());
+        
+        Level(boolean error) {
+            this.error = error;
+        }
+        
+        /**
+         * Parse the name of an output level, ignoring case and surrounding
+         * whitespace.
+         * 
+         * @param name the name of the output level.
+         * @return the output level, or null if there is no such level.
+         */
+        static Level parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
     /**
      * The default output filter that will be applied if the applet parameter 
      * is not specified.
@@ -25,15 +72,20 @@ public class Console implements SignalHandler {
             "FATAL|ERROR|WARNING|INFO|LOG|DEBUG|TRACE_APDU|TRACE_CALL";
     
     /**
-     * The output filter that will only output to the error output stream.
+     * The filter that will be applied to the generated output, as a bitmask 
+     * of the masks of the included levels.
      */
-    protected static final String ERROR_OUTPUT_FILTER = 
-            "FATAL|ERROR|WARNING";
+    protected final AtomicInteger outputFilter = new AtomicInteger();
     
     /**
-     * The filter that will be applied to the generated output.
+     * Per thread formatter for the timestamp of generated output.
      */
-    protected Set<String> outputFilter = new HashSet<String>();
+    private static final ThreadLocal<SimpleDateFormat> timestampFormat = 
+            new ThreadLocal<SimpleDateFormat>() {
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("HH:mm:ss.SSS");
+        }
+    };
     
     /**
      * The parent (applet) of this Console.
@@ -73,12 +125,18 @@ public class Console implements SignalHandler {
     public String getOutputFilter() {
         traceCall("getOutputFilter()");
         
-        String filter = "";
-        for (String level : outputFilter) {
-            filter += "|" + level;
+        int filter = outputFilter.get();
+        StringBuilder levels = new StringBuilder();
+        for (Level level : Level.values()) {
+            if ((filter & level.mask) != 0) {
+                if (levels.length() > 0) {
+                    levels.append('|');
+                }
+                levels.append(level.name());
+            }
         }
         
-        return filter.substring(1);
+        return levels.toString();
     }
     
     /**
@@ -87,16 +145,20 @@ public class Console implements SignalHandler {
      * @param filter the new output filter.
      */
     public void setOutputFilter(String filter) {
-        traceCall("setOutputFilter(" + filter + ")");
+        traceCall("setOutputFilter(%s)", filter);
         
-        if (filter.toUpperCase().equals("ALL")) {
+        if (filter.trim().toUpperCase().equals("ALL")) {
             filter = FULL_OUTPUT_FILTER;
         }
         
-        outputFilter.clear();
-        for (String level : filter.split("\\|")) {
-            addOutputLevel(level);
+        int mask = 0;
+        for (String name : filter.split("\\|")) {
+            Level level = parseLevel(name);
+            if (level != null) {
+                mask |= level.mask;
+            }
         }
+        outputFilter.set(mask);
     }
     
     /**
@@ -105,9 +167,15 @@ public class Console implements SignalHandler {
      * @param level the new output level to be added to the filter.
      */
     public void addOutputLevel(String level) {
-        traceCall("addOutputLevel(" + level + ")");
+        traceCall("addOutputLevel(%s)", level);
 
-        outputFilter.add(level.trim().toUpperCase());
+        Level parsed = parseLevel(level);
+        if (parsed != null) {
+            int filter;
+            do {
+                filter = outputFilter.get();
+            } while (!outputFilter.compareAndSet(filter, filter | parsed.mask));
+        }
     }
     
     /**
@@ -116,9 +184,37 @@ public class Console implements SignalHandler {
      * @param level the output level to be removed from the filter.
      */
     public void removeOutputLevel(String level) {
-        traceCall("removeOutputLevel(" + level + ")");
+        traceCall("removeOutputLevel(%s)", level);
 
-        outputFilter.remove(level.trim().toUpperCase());
+        Level parsed = parseLevel(level);
+        if (parsed != null) {
+            int filter;
+            do {
+                filter = outputFilter.get();
+            } while (!outputFilter.compareAndSet(filter, filter & ~parsed.mask));
+        }
+    }
+    
+    /**
+     * Parse the name of an output level, warning about unknown levels.
+     */
+    private Level parseLevel(String name) {
+        Level level = Level.parse(name);
+        if (level == null && name.trim().length() > 0) {
+            warning("Unknown output level '" + name.trim() + "'");
+        }
+        return level;
+    }
+    
+    /**
+     * Check whether output of the given level will be generated, so callers
+     * can skip building messages which would be filtered out.
+     * 
+     * @param level the output level.
+     * @return whether the output level is included in the current filter.
+     */
+    public boolean isEnabled(Level level) {
+        return (outputFilter.get() & level.mask) != 0;
     }
     
     /**
@@ -127,14 +223,13 @@ public class Console implements SignalHandler {
      * @param level the output level of the message.
      * @param message the message for which output should be generated.
      */
-    protected void output(String level, String message) {
-        if (outputFilter.contains(level.trim().toUpperCase())) {
-            String tag = String.format("%-8S", level.trim());
-            String prefix = new SimpleDateFormat(
-                    "'[" + tag + " 'HH:mm:ss.SSS'] '").format(new Date());
+    protected void output(Level level, String message) {
+        if (isEnabled(level)) {
+            String prefix = level.tag + 
+                    timestampFormat.get().format(new Date()) + "] ";
             
             for (String line : message.split("\n")) {
-                if (ERROR_OUTPUT_FILTER.contains(level)) {
+                if (level.error) {
                     System.err.println(prefix + line);
                 } else {
                     System.out.println(prefix + line);
@@ -156,7 +251,7 @@ public class Console implements SignalHandler {
      * @param message the new output to be processed.
      */
     public void log(String message) {
-        output("LOG", message);
+        output(Level.LOG, message);
     }
     
     /**
@@ -165,7 +260,7 @@ public class Console implements SignalHandler {
      * @param message the new output to be processed.
      */
     public void info(String message) {
-        output("INFO", message);
+        output(Level.INFO, message);
     }    
 
     /**
@@ -174,7 +269,7 @@ public class Console implements SignalHandler {
      * @param message the new output to be processed.
      */
     public void warning(String message) {
-        output("WARNING", message);
+        output(Level.WARNING, message);
     }
 
     /**
@@ -183,7 +278,7 @@ public class Console implements SignalHandler {
      * @param message the new output to be processed.
      */
     public void error(String message) {
-        output("ERROR", message);
+        output(Level.ERROR, message);
     }
     
     /**
@@ -192,7 +287,7 @@ public class Console implements SignalHandler {
      * @param message the new output to be processed.
      */
     public void fatal(String message) {
-        output("FATAL", message);
+        output(Level.FATAL, message);
     }
 
     /**
@@ -201,7 +296,20 @@ public class Console implements SignalHandler {
      * @param message the new output to be processed.
      */
     public void debug(String message) {
-        output("DEBUG", message);
+        output(Level.DEBUG, message);
+    }
+
+    /**
+     * Output a formatted debug message. The message is only formatted if 
+     * the output level is enabled.
+     * 
+     * @param format the format of the new output, see String.format.
+     * @param arg the argument referenced by the format.
+     */
+    public void debug(String format, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            output(Level.DEBUG, String.format(format, arg));
+        }
     }
 
     /**
@@ -210,7 +318,21 @@ public class Console implements SignalHandler {
      * @param message the new output to be processed.
      */
     public void traceAPDU(String message) {
-        output("TRACE_APDU", message);
+        output(Level.TRACE_APDU, message);
+    }
+    
+    /**
+     * Output a formatted APDU tracing message. The message is only formatted
+     * if the output level is enabled.
+     * 
+     * @param format the format of the new output, see String.format.
+     * @param arg1 the first argument referenced by the format.
+     * @param arg2 the second argument referenced by the format.
+     */
+    public void traceAPDU(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.TRACE_APDU)) {
+            output(Level.TRACE_APDU, String.format(format, arg1, arg2));
+        }
     }
     
     /**
@@ -219,7 +341,34 @@ public class Console implements SignalHandler {
      * @param message the new output to be processed.
      */
     public void traceCall(String message) {
-        output("TRACE_CALL", message);
+        output(Level.TRACE_CALL, message);
+    }
+    
+    /**
+     * Output a formatted function call tracing message. The message is only
+     * formatted if the output level is enabled.
+     * 
+     * @param format the format of the new output, see String.format.
+     * @param arg the argument referenced by the format.
+     */
+    public void traceCall(String format, Object arg) {
+        if (isEnabled(Level.TRACE_CALL)) {
+            output(Level.TRACE_CALL, String.format(format, arg));
+        }
+    }
+    
+    /**
+     * Output a formatted function call tracing message. The message is only
+     * formatted if the output level is enabled.
+     * 
+     * @param format the format of the new output, see String.format.
+     * @param arg1 the first argument referenced by the format.
+     * @param arg2 the second argument referenced by the format.
+     */
+    public void traceCall(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.TRACE_CALL)) {
+            output(Level.TRACE_CALL, String.format(format, arg1, arg2));
+        }
     }
     
     /*************************************************************************
@@ -227,6 +376,8 @@ public class Console implements SignalHandler {
      *************************************************************************/
     
     public void handle(Signal signal) {
-        log("Signal '" + signal.getEvent() + "' has been emitted");
+        if (isEnabled(Level.LOG)) {
+            log("Signal '" + signal.getEvent() + "' has been emitted");
+        }
     }
 }
@@ -0,0 +1,1085 @@
+package org.irmacard.scjs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+import net.sourceforge.scuba.smartcards.CardEvent;
+import net.sourceforge.scuba.smartcards.CardManager;
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.CardTerminalEvent;
+import net.sourceforge.scuba.smartcards.CardTerminalListener;
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+import net.sourceforge.scuba.smartcards.TerminalCardService;
+import net.sourceforge.scuba.smartcards.TerminalFactoryListener;
+
+import org.irmacard.chvservice.APDUMetrics;
+import org.irmacard.chvservice.CapabilityCache;
+import org.irmacard.chvservice.CardHolderVerificationService;
+import org.irmacard.chvservice.IPinVerificationListener;
+import org.irmacard.chvservice.ReaderProfiles;
+import org.irmacard.chvservice.ResponseCache;
+import org.irmacard.simulator.CardScript;
+import org.irmacard.simulator.VirtualCard;
+import org.irmacard.simulator.VirtualReaders;
+
+/**
+ * Headless variant of the bridge, which offers the operations of the applet
+ * to pages over a WebSocket on the loopback interface instead of LiveConnect.
+ *
+ * Text messages are JSON requests like {"id":1,"op":"connect","reader":"..."}
+ * answered by {"id":1,"result":...} or {"id":1,"error":"..."}. The
+ * operations and their parameters follow the methods of SmartCardJS, taking
+ * a session handle where those do: getReaderList, getCardList,
+ * getReaderStateSince (version), refreshPresence, connect (reader),
+ * connectFirstCard, disconnect (handle), transmit (handle, apdu),
+ * transmitBase64 (handle, apdu), transmitBatch (handle, apdus, 
+ * stopOnError), setResponseChaining (handle, enabled, maxLength), verifyPin
+ * (handle), enterPin (handle, pin), cancelPinEntry (handle),
+ * beginTransaction (handle), endTransaction (handle), setTransactionTimeout
+ * (timeout), setAutoReconnect (enabled, replaySelect), addCacheableCommand
+ * (pattern), clearResponseCache, getMetrics, resetMetrics,
+ * getSignalStatistics, subscribe (events), unsubscribe (events),
+ * getSubscriptions, setPinPadTimeout (timeout), getOutputFilter and
+ * setOutputFilter (filter). The result of transmitBase64 is an object with
+ * the members data, sw1, sw2 and error, see TransmitResult.
+ *
+ * APDUs can also be sent as binary messages: a 4 byte request identifier, a
+ * 4 byte session handle and the command. The answer is a binary message
+ * holding the request identifier, a status byte (0 for success) and either
+ * the response of the card or a UTF-8 error message.
+ *
+ * The requests of a page are handled one at a time, in the order in which
+ * they arrived, so pipelined commands reach the card in order. Only enterPin
+ * and cancelPinEntry are handled right away, as they answer a verifyPin
+ * which is still pending.
+ *
+ * Signals are pushed to the connected pages as {"signals":[...]}, holding
+ * the serialized signals, see Signal.toJSON. A page is subscribed to all
+ * events ("*") until it unsubscribes from "*" and subscribes to the names or
+ * patterns of the events it needs, see SignalFilter. When the card asks for
+ * a PIN without PIN-pad, a "pin-required" signal carrying the reader and the
+ * tries left is pushed, and the page answers with enterPin.
+ */
+public class HeadlessBridge
+    implements CardTerminalListener, TerminalFactoryListener, WebSocketServer.Handler {
+
+    /**
+     * Port on which the bridge listens by default.
+     */
+    public static final int DEFAULT_PORT = 8788;
+
+    /**
+     * Number of threads handling requests.
+     */
+    private static final int MAX_WORKERS = 16;
+
+    /**
+     * Maximum number of requests of a page waiting to be handled.
+     */
+    private static final int MAX_PENDING_REQUESTS = 64;
+
+    private static final byte STATUS_OK = 0;
+    private static final byte STATUS_ERROR = 1;
+
+    /**
+     * Marker which is entered to cancel a pending PIN request.
+     */
+    private static final String PIN_CANCELLED = new String("cancelled");
+
+    private final Console console = new Console(null);
+    private final ReaderPresence presence = new ReaderPresence();
+    private final APDUMetrics metrics = new APDUMetrics();
+    private final ResponseCache responseCache = new ResponseCache(ResponseCache.DEFAULT_CAPACITY);
+    private final CapabilityCache capabilityCache;
+    private final SessionRegistry sessions;
+    private final SignalDispatcher signalDispatcher;
+    private final WebSocketServer server;
+
+    /**
+     * Execution service which handles the requests, so the selector thread
+     * never waits for a card.
+     */
+    private final ThreadPoolExecutor executorService = new ThreadPoolExecutor(
+            MAX_WORKERS, MAX_WORKERS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * Origins of the pages which may connect; none if empty.
+     */
+    private final Set<String> origins = new CopyOnWriteArraySet<String>();
+
+    /**
+     * Connected pages, with the events to which they subscribed.
+     */
+    private final ConcurrentMap<WebSocketServer.Connection, SignalFilter> connections =
+            new ConcurrentHashMap<WebSocketServer.Connection, SignalFilter>();
+
+    /**
+     * Requests of the connected pages which still have to be handled.
+     */
+    private final ConcurrentMap<WebSocketServer.Connection, RequestQueue> requests =
+            new ConcurrentHashMap<WebSocketServer.Connection, RequestQueue>();
+
+    /**
+     * PINs entered by the page, by reader, for the pending PIN requests.
+     */
+    private final ConcurrentMap<String, BlockingQueue<String>> pinEntries =
+            new ConcurrentHashMap<String, BlockingQueue<String>>();
+
+    private volatile long pinTimeout = CardHolderVerificationService.DEFAULT_PIN_PAD_TIMEOUT;
+
+    private volatile long transactionTimeout = CardSession.DEFAULT_TRANSACTION_TIMEOUT;
+
+    /**
+     * Handles of the sessions in which a page began a transaction, so they
+     * are ended when the page goes away.
+     */
+    private final ConcurrentMap<WebSocketServer.Connection, Set<Integer>> transactions =
+            new ConcurrentHashMap<WebSocketServer.Connection, Set<Integer>>();
+
+    private volatile boolean warmUp = false;
+    private volatile byte[] warmUpSelect = null;
+
+    private CardManager cardManager = null;
+    private VirtualReaders virtualReaders = null;
+
+    /**
+     * Construct a new bridge.
+     *
+     * @param port the port to listen on.
+     * @param capabilities the file in which reader capabilities are cached.
+     * @exception IOException if the port cannot be bound.
+     */
+    public HeadlessBridge(int port, File capabilities) throws IOException {
+        capabilityCache = new CapabilityCache(capabilities);
+        try {
+            capabilityCache.load();
+        } catch (IOException e) {
+            console.warning("Failed to load reader capabilities: " + e.getMessage());
+        }
+        sessions = new SessionRegistry(capabilityCache, metrics);
+        executorService.allowCoreThreadTimeOut(true);
+
+        signalDispatcher = new SignalDispatcher(console, new SignalDispatcher.Sink() {
+            public void dispatch(Signal[] signals) {
+                for (Signal signal : signals) {
+                    console.handle(signal);
+                }
+                broadcast(signals);
+            }
+        });
+        server = new WebSocketServer(port, this);
+    }
+
+    public Console getConsole() {
+        return console;
+    }
+
+    /**
+     * Accept connections from pages of the given origin. Without any allowed
+     * origins all connections are refused, since any site the user visits
+     * could otherwise reach the card through the bridge.
+     *
+     * @param origin the origin, e.g. https://example.org
+     */
+    public void allowOrigin(String origin) {
+        origins.add(origin);
+    }
+
+    /**
+     * Mark the commands matching a pattern as cacheable, see ResponseCache.
+     *
+     * @param pattern the command pattern.
+     */
+    public void addCacheableCommand(String pattern) {
+        responseCache.addCacheable(pattern);
+        sessions.setResponseCache(responseCache);
+    }
+
+    /**
+     * Open a session as soon as a card is inserted, read the ATR and send a
+     * SELECT command, so a later connect returns immediately. A 
+     * sessionReady signal carrying the reader, the handle and the ATR is
+     * pushed when the session is ready.
+     *
+     * @param enabled whether sessions should be warmed up.
+     * @param select the encoded SELECT command, or null.
+     */
+    public void setWarmUp(boolean enabled, byte[] select) {
+        warmUpSelect = select == null ? null : select.clone();
+        warmUp = enabled;
+    }
+
+    /**
+     * Use simulated readers instead of the PC/SC readers.
+     *
+     * @param readers the simulated readers.
+     */
+    public void setVirtualReaders(VirtualReaders readers) {
+        virtualReaders = readers;
+    }
+
+    /**
+     * Start watching the readers and accepting connections.
+     */
+    public void start() {
+        signalDispatcher.start();
+        if (virtualReaders != null) {
+            virtualReaders.addTerminalFactoryListener(this);
+            virtualReaders.addCardTerminalListener(this);
+        } else {
+            cardManager = CardManager.getInstance();
+            cardManager.addTerminalFactoryListener(this);
+            cardManager.addCardTerminalListener(this);
+            cardManager.startPolling();
+        }
+        presence.refresh(getTerminals());
+        server.start();
+
+        console.info("Listening on ws://127.0.0.1:" + server.getPort() + "/");
+        if (origins.isEmpty()) {
+            console.warning("No allowed origins, refusing all connections");
+        }
+    }
+
+    /**
+     * Close all sessions and connections and stop the bridge.
+     */
+    public void stop() {
+        if (cardManager != null) {
+            cardManager.stopPolling();
+        }
+        server.shutdown();
+        executorService.shutdown();
+        sessions.disconnectAll();
+        signalDispatcher.shutdown();
+
+        try {
+            capabilityCache.save();
+        } catch (IOException e) {
+            console.warning("Failed to save reader capabilities: " + e.getMessage());
+        }
+    }
+
+    private List<CardTerminal> getTerminals() {
+        return virtualReaders != null ? virtualReaders.getTerminals() : cardManager.getTerminals();
+    }
+
+    /**
+     * Check whether a page subscribed to an event, or the console logs it.
+     */
+    private boolean isSubscribed(String event) {
+        if (console.isEnabled(Console.Level.LOG)) {
+            return true;
+        }
+        for (SignalFilter filter : connections.values()) {
+            if (filter.accepts(event)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Emit a signal for an event, unless no page subscribed to it.
+     */
+    private void emit(String event, Object... attributes) {
+        if (isSubscribed(event)) {
+            signalDispatcher.enqueue(new Signal(this, event, attributes));
+        }
+    }
+
+    /*************************************************************************
+     *** Connections                                                       ***
+     *************************************************************************/
+
+    public boolean accept(String origin) {
+        // Handshakes without an Origin header are refused as well
+        return origin != null && origins.contains(origin);
+    }
+
+    public void opened(WebSocketServer.Connection connection) {
+        requests.put(connection, new RequestQueue());
+        connections.put(connection, new SignalFilter("*"));
+    }
+
+    public void closed(WebSocketServer.Connection connection) {
+        connections.remove(connection);
+        requests.remove(connection);
+
+        // End the transactions which the page left behind
+        final Set<Integer> handles = transactions.remove(connection);
+        if (handles != null && !handles.isEmpty()) {
+            executorService.execute(new Runnable() {
+                public void run() {
+                    for (Integer handle : handles) {
+                        CardSession session = sessions.get(handle);
+                        if (session != null) {
+                            session.endTransaction();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    public void textReceived(final WebSocketServer.Connection connection, String text) {
+        final Map<String, Object> request;
+        try {
+            request = parse(text);
+        } catch (IllegalArgumentException e) {
+            connection.sendText(error(null, e.getMessage()));
+            return;
+        }
+
+        Runnable task = new Runnable() {
+            public void run() {
+                connection.sendText(handleRequest(connection, request));
+            }
+        };
+        Object op = request.get("op");
+        if ("enterPin".equals(op) || "cancelPinEntry".equals(op)) {
+            // The verifyPin waiting for this request holds up the queue
+            try {
+                executorService.execute(task);
+            } catch (RejectedExecutionException e) {
+                connection.sendText(error(request.get("id"), "Bridge stopped."));
+            }
+        } else if (!queue(connection, task)) {
+            connection.sendText(error(request.get("id"), "Too many pending requests."));
+        }
+    }
+
+    public void binaryReceived(final WebSocketServer.Connection connection, final byte[] data) {
+        Runnable task = new Runnable() {
+            public void run() {
+                connection.sendBinary(handleTransmit(data));
+            }
+        };
+        if (!queue(connection, task)) {
+            connection.sendBinary(answer(data.length < 4 ? 0 : ByteBuffer.wrap(data).getInt(),
+                    STATUS_ERROR, "Too many pending requests."));
+        }
+    }
+
+    /**
+     * Queue a request of a page behind its earlier requests.
+     *
+     * @return whether the request was queued.
+     */
+    private boolean queue(WebSocketServer.Connection connection, Runnable task) {
+        RequestQueue queue = requests.get(connection);
+        return queue != null && queue.offer(task);
+    }
+
+    /**
+     * Push a batch of signals to the connected pages, each receiving the
+     * signals to which it subscribed.
+     */
+    private void broadcast(Signal[] signals) {
+        for (Map.Entry<WebSocketServer.Connection, SignalFilter> entry : connections.entrySet()) {
+            SignalFilter filter = entry.getValue();
+            StringBuilder json = null;
+            for (Signal signal : signals) {
+                if (filter.accepts(signal.getEvent())) {
+                    json = json == null ? new StringBuilder("{\"signals\":[") : json.append(',');
+                    json.append(signal.toJSON());
+                }
+            }
+            if (json != null) {
+                entry.getKey().sendText(json.append("]}").toString());
+            }
+        }
+    }
+
+    /*************************************************************************
+     *** Requests                                                          ***
+     *************************************************************************/
+
+    /**
+     * Parse a JSON request.
+     */
+    private static Map<String, Object> parse(String text) {
+        Object parsed = Json.parse(text);
+        if (!(parsed instanceof Map)) {
+            throw new IllegalArgumentException("request is not an object");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> request = (Map<String, Object>) parsed;
+        return request;
+    }
+
+    /**
+     * Build the JSON answer reporting that a request failed.
+     */
+    private static String error(Object id, String message) {
+        StringBuilder answer = new StringBuilder("{\"id\":");
+        Json.append(answer, id).append(",\"error\":");
+        return Json.quote(answer, String.valueOf(message)).append('}').toString();
+    }
+
+    /**
+     * Handle a JSON request and build its JSON answer.
+     */
+    private String handleRequest(WebSocketServer.Connection connection,
+            Map<String, Object> request) {
+        Object id = request.get("id");
+        try {
+            String op = string(request, "op");
+            console.traceCall("request(%s)", op);
+
+            String result = call(connection, op, request);
+            StringBuilder answer = new StringBuilder("{\"id\":");
+            Json.append(answer, id).append(",\"result\":").append(result);
+            return answer.append('}').toString();
+        } catch (IllegalArgumentException e) {
+            return error(id, e.getMessage());
+        } catch (CardServiceException e) {
+            return error(id, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            // The session was closed in the meantime, e.g. by cardRemoved
+            return error(id, "No card connected.");
+        } catch (RuntimeException e) {
+            console.warning("Request failed: " + e);
+            return error(id, e.toString());
+        }
+    }
+
+    /**
+     * Perform an operation.
+     *
+     * @return the JSON encoded result.
+     */
+    private String call(WebSocketServer.Connection connection, String op,
+            Map<String, Object> request) throws CardServiceException {
+        if (op.equals("getReaderList")) {
+            return json(presence.getReaderList());
+        } else if (op.equals("getCardList")) {
+            return json(presence.getCardList());
+        } else if (op.equals("getReaderStateSince")) {
+            return json(presence.getStateSince(number(request, "version").longValue()));
+        } else if (op.equals("refreshPresence")) {
+            presence.refresh(getTerminals());
+            return "null";
+        } else if (op.equals("connect")) {
+            return json(connect(string(request, "reader")));
+        } else if (op.equals("connectFirstCard")) {
+            for (CardTerminal reader : getTerminals()) {
+                if (presence.isCardPresent(reader.getName())) {
+                    return json(connect(reader.getName()));
+                }
+            }
+            throw new CardServiceException("No card found.");
+        } else if (op.equals("disconnect")) {
+            return json(sessions.disconnect(number(request, "handle").intValue()));
+        } else if (op.equals("transmit")) {
+            CardSession session = session(request);
+            return json(HexCodec.encode(transmit(session,
+                    HexCodec.decode(string(request, "apdu"), true))));
+        } else if (op.equals("transmitBase64")) {
+            return transmitBase64(session(request), string(request, "apdu")).toJSON();
+        } else if (op.equals("transmitBatch")) {
+            return transmitBatch(session(request), request);
+        } else if (op.equals("setResponseChaining")) {
+            session(request).getService().setResponseChaining(
+                    bool(request, "enabled"), number(request, "maxLength").intValue());
+            return "true";
+        } else if (op.equals("verifyPin")) {
+            return json(verifyPin(session(request)));
+        } else if (op.equals("enterPin")) {
+            BlockingQueue<String> entry = pinEntries.get(session(request).getReader());
+            return json(entry != null && entry.offer(string(request, "pin")));
+        } else if (op.equals("cancelPinEntry")) {
+            CardSession session = session(request);
+            BlockingQueue<String> entry = pinEntries.get(session.getReader());
+            boolean pending = entry != null && entry.offer(PIN_CANCELLED);
+            return json(session.getService().cancelPinEntry() || pending);
+        } else if (op.equals("beginTransaction")) {
+            CardSession session = session(request);
+            try {
+                session.beginTransaction(transactionTimeout);
+            } catch (PrivilegedActionException e) {
+                throw unwrap(e);
+            }
+            transactionsOf(connection).add(session.getHandle());
+            return "true";
+        } else if (op.equals("endTransaction")) {
+            CardSession session = session(request);
+            transactionsOf(connection).remove(session.getHandle());
+            return json(session.endTransaction());
+        } else if (op.equals("setAutoReconnect")) {
+            sessions.setAutoReconnect(bool(request, "enabled"),
+                    Boolean.TRUE.equals(request.get("replaySelect")));
+            return "null";
+        } else if (op.equals("setTransactionTimeout")) {
+            long timeout = number(request, "timeout").longValue();
+            if (timeout <= 0) {
+                throw new IllegalArgumentException("invalid timeout " + timeout);
+            }
+            transactionTimeout = timeout;
+            return "null";
+        } else if (op.equals("addCacheableCommand")) {
+            addCacheableCommand(string(request, "pattern"));
+            return "null";
+        } else if (op.equals("clearResponseCache")) {
+            responseCache.clear();
+            return "null";
+        } else if (op.equals("getMetrics")) {
+            return metrics.toJSON();
+        } else if (op.equals("resetMetrics")) {
+            metrics.reset();
+            return "null";
+        } else if (op.equals("getSignalStatistics")) {
+            return signalDispatcher.toJSON();
+        } else if (op.equals("subscribe")) {
+            subscriptions(connection).subscribe(string(request, "events"));
+            return "null";
+        } else if (op.equals("unsubscribe")) {
+            subscriptions(connection).unsubscribe(string(request, "events"));
+            return "null";
+        } else if (op.equals("getSubscriptions")) {
+            return json(subscriptions(connection).toString());
+        } else if (op.equals("setPinPadTimeout")) {
+            pinTimeout = number(request, "timeout").longValue();
+            sessions.setPinPadTimeout(pinTimeout);
+            return "null";
+        } else if (op.equals("getOutputFilter")) {
+            return json(console.getOutputFilter());
+        } else if (op.equals("setOutputFilter")) {
+            console.setOutputFilter(string(request, "filter"));
+            return "null";
+        }
+        throw new IllegalArgumentException("unknown operation " + op);
+    }
+
+    /**
+     * Handle a binary transmit request and build its binary answer.
+     */
+    private byte[] handleTransmit(byte[] data) {
+        if (data.length < 8) {
+            return answer(data.length < 4 ? 0 : ByteBuffer.wrap(data).getInt(),
+                    STATUS_ERROR, "truncated request");
+        }
+
+        ByteBuffer request = ByteBuffer.wrap(data);
+        int id = request.getInt();
+        CardSession session = sessions.get(request.getInt());
+        if (session == null) {
+            return answer(id, STATUS_ERROR, "No card connected.");
+        }
+
+        byte[] command = new byte[request.remaining()];
+        request.get(command);
+        try {
+            byte[] response = transmit(session, command);
+            return ByteBuffer.allocate(5 + response.length)
+                    .putInt(id).put(STATUS_OK).put(response).array();
+        } catch (CardServiceException e) {
+            return answer(id, STATUS_ERROR, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return answer(id, STATUS_ERROR, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            // The session was closed in the meantime, e.g. by cardRemoved
+            return answer(id, STATUS_ERROR, "No card connected.");
+        } catch (RuntimeException e) {
+            console.warning("Request failed: " + e);
+            return answer(id, STATUS_ERROR, e.toString());
+        }
+    }
+
+    private Set<Integer> transactionsOf(WebSocketServer.Connection connection) {
+        Set<Integer> handles = transactions.get(connection);
+        if (handles == null) {
+            Set<Integer> created = new CopyOnWriteArraySet<Integer>();
+            handles = transactions.putIfAbsent(connection, created);
+            if (handles == null) {
+                handles = created;
+            }
+        }
+        return handles;
+    }
+
+    private static byte[] answer(int id, byte status, String message) {
+        byte[] text;
+        try {
+            text = String.valueOf(message).getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.allocate(5 + text.length).putInt(id).put(status).put(text).array();
+    }
+
+    private int connect(String name) throws CardServiceException {
+        for (CardTerminal reader : getTerminals()) {
+            try {
+                if (reader.getName().equals(name) && reader.isCardPresent()) {
+                    return sessions.connect(reader, new BridgePinListener(name)).getHandle();
+                }
+            } catch (CardException e) {
+                throw new CardServiceException(e.getMessage());
+            }
+        }
+        throw new CardServiceException("No card found.");
+    }
+
+    private byte[] transmit(final CardSession session, final byte[] command)
+            throws CardServiceException {
+        try {
+            return session.execute(new PrivilegedExceptionAction<byte[]>() {
+                public byte[] run() throws CardServiceException {
+                    ResponseAPDU response = session.getService().transmit(
+                            new CommandAPDU(command));
+                    byte[] bytes = response.getBytes();
+                    if (console.isEnabled(Console.Level.TRACE_APDU)) {
+                        console.traceAPDU("C: %s\nR: %s",
+                                HexCodec.encode(command), HexCodec.encode(bytes));
+                    }
+                    return bytes;
+                }
+            });
+        } catch (PrivilegedActionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Transmit a base64-encoded command, reporting failures in the result.
+     */
+    private TransmitResult transmitBase64(CardSession session, String apdu) {
+        try {
+            return TransmitResult.success(transmit(session, Base64Codec.decode(apdu)));
+        } catch (IllegalArgumentException e) {
+            return TransmitResult.failure(TransmitResult.ERROR_INVALID_COMMAND, e.getMessage());
+        } catch (CardServiceException e) {
+            return TransmitResult.failure(TransmitResult.ERROR_TRANSMIT, e.getMessage());
+        } catch (RejectedExecutionException e) {
+            return TransmitResult.failure(TransmitResult.ERROR_NO_CARD, "No card connected.");
+        }
+    }
+
+    private String transmitBatch(final CardSession session, Map<String, Object> request)
+            throws CardServiceException {
+        Object apdus = request.get("apdus");
+        if (!(apdus instanceof List)) {
+            throw new IllegalArgumentException("missing apdus");
+        }
+        final List<?> commands = (List<?>) apdus;
+        final boolean stop = Boolean.TRUE.equals(request.get("stopOnError"));
+
+        try {
+            return session.execute(new PrivilegedExceptionAction<String>() {
+                public String run() {
+                    StringBuilder json = new StringBuilder("[");
+                    for (Object command : commands) {
+                        if (json.length() > 1) {
+                            json.append(',');
+                        }
+                        try {
+                            ResponseAPDU response = session.getService().transmit(
+                                    new CommandAPDU(HexCodec.decode(String.valueOf(command), true)));
+                            Json.quote(json, HexCodec.encode(response.getBytes()));
+                            if (stop && response.getSW() != 0x9000) {
+                                break;
+                            }
+                        } catch (IllegalArgumentException e) {
+                            Json.quote(json, "Exception " + e.getMessage());
+                            break;
+                        } catch (CardServiceException e) {
+                            Json.quote(json, "Exception " + e.getMessage());
+                            break;
+                        }
+                    }
+                    return json.append(']').toString();
+                }
+            });
+        } catch (PrivilegedActionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private int verifyPin(final CardSession session) throws CardServiceException {
+        try {
+            return session.execute(new PrivilegedExceptionAction<Integer>() {
+                public Integer run() {
+                    try {
+                        return session.getService().verifyPIN();
+                    } catch (Exception e) {
+                        console.warning("PIN verification failed: " + e.getMessage());
+                        return -17;
+                    }
+                }
+            });
+        } catch (PrivilegedActionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static CardServiceException unwrap(PrivilegedActionException e) {
+        if (e.getException() instanceof CardServiceException) {
+            return (CardServiceException) e.getException();
+        }
+        return new CardServiceException(e.getException().toString());
+    }
+
+    private CardSession session(Map<String, Object> request) {
+        CardSession session = sessions.get(number(request, "handle").intValue());
+        if (session == null) {
+            throw new IllegalArgumentException("No card connected.");
+        }
+        return session;
+    }
+
+    private SignalFilter subscriptions(WebSocketServer.Connection connection) {
+        SignalFilter filter = connections.get(connection);
+        if (filter == null) {
+            throw new IllegalStateException("connection closed");
+        }
+        return filter;
+    }
+
+    private static String string(Map<String, Object> request, String name) {
+        Object value = request.get(name);
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException("missing " + name);
+        }
+        return (String) value;
+    }
+
+    private static Number number(Map<String, Object> request, String name) {
+        Object value = request.get(name);
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException("missing " + name);
+        }
+        return (Number) value;
+    }
+
+    private static boolean bool(Map<String, Object> request, String name) {
+        Object value = request.get(name);
+        if (!(value instanceof Boolean)) {
+            throw new IllegalArgumentException("missing " + name);
+        }
+        return (Boolean) value;
+    }
+
+    private static String json(Object value) {
+        return Json.append(new StringBuilder(), value).toString();
+    }
+
+    /**
+     * Requests of a page, which are handled one at a time on the execution
+     * service in the order in which they were queued.
+     */
+    private class RequestQueue implements Runnable {
+
+        private final Deque<Runnable> pending = new ArrayDeque<Runnable>();
+        private boolean running = false;
+
+        /**
+         * Queue a request.
+         *
+         * @return whether the request was queued, which it is not when too
+         *         many requests are pending or the bridge was stopped.
+         */
+        synchronized boolean offer(Runnable request) {
+            if (pending.size() >= MAX_PENDING_REQUESTS) {
+                return false;
+            }
+            if (!running) {
+                try {
+                    executorService.execute(this);
+                } catch (RejectedExecutionException e) {
+                    return false;
+                }
+                running = true;
+            }
+            pending.addLast(request);
+            return true;
+        }
+
+        public void run() {
+            while (true) {
+                Runnable request;
+                synchronized (this) {
+                    request = pending.pollFirst();
+                    if (request == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    request.run();
+                } catch (RuntimeException e) {
+                    // Keep handling the later requests of the page
+                    console.error("Failed to handle a request due to an Exception: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Listener which asks the page for the PIN instead of showing a dialog.
+     */
+    private class BridgePinListener implements IPinVerificationListener {
+
+        private final String reader;
+
+        BridgePinListener(String reader) {
+            this.reader = reader;
+        }
+
+        public String userPinRequest(Integer nr_tries_left) {
+            BlockingQueue<String> entry = new ArrayBlockingQueue<String>(1);
+            pinEntries.put(reader, entry);
+            emit("pin-required", reader, nr_tries_left);
+            try {
+                String pin = entry.poll(pinTimeout, TimeUnit.MILLISECONDS);
+                if (pin == null || pin == PIN_CANCELLED) {
+                    throw new IllegalStateException("PIN entry timed out or was cancelled");
+                }
+                return pin;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("PIN entry interrupted");
+            } finally {
+                pinEntries.remove(reader, entry);
+            }
+        }
+
+        public void pinPadPinRequired(Integer nr_tries_left) {
+            emit("pin-pad-pin-required", reader);
+        }
+
+        public void pinPadPinEntered(String status) {
+            emit("pin-pad-pin-entered", reader, status);
+        }
+    }
+
+    /*************************************************************************
+     *** SmartCardIO interaction                                           ***
+     *************************************************************************/
+
+    public void cardTerminalAdded(CardTerminalEvent event) {
+        presence.readerAdded(event.getTerminal().getName());
+        emit("terminalAdded", event.getTerminal());
+    }
+
+    public void cardTerminalRemoved(CardTerminalEvent event) {
+        presence.readerRemoved(event.getTerminal().getName());
+        emit("terminalRemoved", event.getTerminal());
+    }
+
+    public void cardInserted(CardEvent event) {
+        if (event.getService() instanceof TerminalCardService) {
+            CardTerminal terminal = ((TerminalCardService) event.getService()).getTerminal();
+            presence.cardInserted(terminal.getName());
+            if (warmUp) {
+                warmUp(terminal);
+            }
+        }
+        emit("cardInserted", event.getService());
+    }
+
+    /**
+     * Open a session with a newly inserted card in the background, see
+     * setWarmUp.
+     */
+    private void warmUp(final CardTerminal terminal) {
+        final byte[] select = warmUpSelect;
+        executorService.execute(new Runnable() {
+            public void run() {
+                try {
+                    CardSession session = sessions.warmUp(terminal,
+                            new BridgePinListener(terminal.getName()), select);
+                    if (isSubscribed("sessionReady")) {
+                        signalDispatcher.enqueue(new Signal(HeadlessBridge.this, "sessionReady",
+                                new Object[]{terminal.getName(), session.getHandle()},
+                                terminal.getName(), session.getService().getKnownATR()));
+                    }
+                } catch (CardServiceException e) {
+                    console.warning("Failed to warm up session with "
+                            + terminal.getName() + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    public void cardRemoved(CardEvent event) {
+        if (event.getService() instanceof TerminalCardService) {
+            String reader = ((TerminalCardService) event.getService()).getTerminal().getName();
+            presence.cardRemoved(reader);
+            responseCache.invalidate(reader);
+            sessions.disconnect(reader);
+        }
+        emit("cardRemoved", event.getService());
+    }
+
+    /*************************************************************************
+     *** Launcher                                                          ***
+     *************************************************************************/
+
+    /**
+     * Run the bridge until the process is terminated. Options:
+     *
+     * <pre>
+     * --port PORT                 port to listen on
+     * --allow-origin ORIGIN       accept pages of this origin (required,
+     *                             repeatable)
+     * --output-filter FILTER      console output filter, see Console
+     * --pin-pad-timeout MILLIS    time for entering a PIN
+     * --reader-profiles FILE      additional reader profiles
+     * --auto-reconnect plain|replay
+     *                             reconnect after a card reset, replaying
+     *                             the last SELECT or not
+     * --warm-up SELECT|none       open sessions on card insertion and send
+     *                             the hex-encoded SELECT command
+     * --cacheable PATTERN         cache responses to matching commands,
+     *                             see ResponseCache (repeatable)
+     * --signal-queue-size COUNT   maximum number of pending signals
+     * --signal-debounce MILLIS    window for coalescing reader and card events
+     * --simulate READER=SCRIPT    simulated reader with a scripted card
+     *                             instead of the PC/SC readers (repeatable)
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        List<String> allowed = new ArrayList<String>();
+        List<String> simulated = new ArrayList<String>();
+        List<String> cacheable = new ArrayList<String>();
+        String filter = null;
+        String profiles = null;
+        String timeout = null;
+        String warmUp = null;
+        String reconnect = null;
+        String queueSize = null;
+        String debounce = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                usage("missing value for " + option);
+            }
+            String value = args[++i];
+            if (option.equals("--port")) {
+                port = Integer.parseInt(value);
+            } else if (option.equals("--allow-origin")) {
+                allowed.add(value);
+            } else if (option.equals("--output-filter")) {
+                filter = value;
+            } else if (option.equals("--pin-pad-timeout")) {
+                timeout = value;
+            } else if (option.equals("--reader-profiles")) {
+                profiles = value;
+            } else if (option.equals("--auto-reconnect")) {
+                reconnect = value;
+            } else if (option.equals("--warm-up")) {
+                warmUp = value;
+            } else if (option.equals("--cacheable")) {
+                cacheable.add(value);
+            } else if (option.equals("--signal-queue-size")) {
+                queueSize = value;
+            } else if (option.equals("--signal-debounce")) {
+                debounce = value;
+            } else if (option.equals("--simulate")) {
+                simulated.add(value);
+            } else {
+                usage("unknown option " + option);
+            }
+        }
+
+        if (allowed.isEmpty()) {
+            usage("at least one --allow-origin is required");
+        }
+
+        final HeadlessBridge bridge = new HeadlessBridge(port,
+                new File(System.getProperty("user.home"), ".smartcardjs-capabilities"));
+        if (filter != null) {
+            bridge.console.setOutputFilter(filter);
+        }
+        if (timeout != null) {
+            bridge.pinTimeout = Long.parseLong(timeout);
+            bridge.sessions.setPinPadTimeout(bridge.pinTimeout);
+        }
+        if (profiles != null) {
+            ReaderProfiles.getDefault().load(new FileInputStream(profiles));
+        }
+        for (String origin : allowed) {
+            bridge.allowOrigin(origin);
+        }
+        for (String pattern : cacheable) {
+            bridge.addCacheableCommand(pattern);
+        }
+        if (reconnect != null) {
+            if (!reconnect.equals("plain") && !reconnect.equals("replay")) {
+                usage("invalid reconnect mode " + reconnect);
+            }
+            bridge.sessions.setAutoReconnect(true, reconnect.equals("replay"));
+        }
+        if (queueSize != null) {
+            bridge.signalDispatcher.setCapacity(Integer.parseInt(queueSize));
+        }
+        if (debounce != null) {
+            bridge.signalDispatcher.setDebounce(Long.parseLong(debounce));
+        }
+        if (warmUp != null) {
+            bridge.setWarmUp(true, warmUp.equals("none") ? null : HexCodec.decode(warmUp, true));
+        }
+
+        VirtualReaders readers = null;
+        if (!simulated.isEmpty()) {
+            readers = new VirtualReaders();
+            bridge.setVirtualReaders(readers);
+        }
+
+        bridge.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                bridge.stop();
+            }
+        });
+
+        // Insert the simulated cards once the bridge listens for the events
+        for (String simulation : simulated) {
+            int separator = simulation.indexOf('=');
+            if (separator <= 0) {
+                usage("invalid simulation " + simulation);
+            }
+            CardScript script = new CardScript();
+            script.load(new FileInputStream(simulation.substring(separator + 1)));
+            readers.insertCard(simulation.substring(0, separator),
+                    new VirtualCard(VirtualCard.DEFAULT_ATR, script));
+        }
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("usage: HeadlessBridge --allow-origin ORIGIN... [--port PORT] "
+                + "[--output-filter FILTER] [--pin-pad-timeout MILLIS] "
+                + "[--reader-profiles FILE] [--auto-reconnect plain|replay] "
+                + "[--warm-up SELECT|none] [--cacheable PATTERN]... "
+                + "[--signal-queue-size COUNT] [--signal-debounce MILLIS] "
+                + "[--simulate READER=SCRIPT]...");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,187 @@
+package org.irmacard.scjs;
+
+/**
+ * Table-driven encoder and decoder for hex-encoded byte-arrays as they cross
+ * the bridge. Both directions work on buffers which are kept per thread, so
+ * the only allocation on the APDU path is the resulting String.
+ */
+public final class HexCodec {
+
+    /**
+     * Digits used for encoding, indexed by nibble value.
+     */
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Nibble values used for decoding, indexed by character; -1 marks
+     * characters which are not hex digits.
+     */
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            VALUES['A' + i] = (byte) (10 + i);
+            VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    /**
+     * Per thread buffer to encode into.
+     */
+    private static final ThreadLocal<char[]> charBuffer =
+            new ThreadLocal<char[]>() {
+        protected char[] initialValue() {
+            return new char[512];
+        }
+    };
+
+    /**
+     * Per thread buffer to decode into.
+     */
+    private static final ThreadLocal<byte[]> byteBuffer =
+            new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
+
+    private HexCodec() {
+    }
+
+    /**
+     * Encode a byte-array as a string of upper case hex digits.
+     *
+     * @param bytes the bytes to encode.
+     * @return the hex-encoded bytes.
+     */
+    public static String encode(byte[] bytes) {
+        return encode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Encode part of a byte-array as a string of upper case hex digits.
+     *
+     * @param bytes the array holding the bytes to encode.
+     * @param offset the index of the first byte to encode.
+     * @param length the number of bytes to encode.
+     * @return the hex-encoded bytes.
+     */
+    public static String encode(byte[] bytes, int offset, int length) {
+        char[] chars = charBuffer.get();
+        if (chars.length < 2 * length) {
+            chars = new char[2 * length];
+            charBuffer.set(chars);
+        }
+
+        for (int i = 0, j = 0; i < length; i++) {
+            int b = bytes[offset + i];
+            chars[j++] = DIGITS[(b >> 4) & 0x0F];
+            chars[j++] = DIGITS[b & 0x0F];
+        }
+
+        return new String(chars, 0, 2 * length);
+    }
+
+    /**
+     * Get the buffer of the calling thread, large enough to decode the given
+     * string into. The contents remain valid until the next call on the
+     * same thread.
+     *
+     * @param hex the string which is going to be decoded.
+     * @return the buffer to decode into.
+     */
+    public static byte[] buffer(String hex) {
+        int capacity = (hex.length() + 1) / 2;
+        byte[] bytes = byteBuffer.get();
+        if (bytes.length < capacity) {
+            bytes = new byte[capacity];
+            byteBuffer.set(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Decode a string of hex digits into the given buffer.
+     *
+     * In strict mode the string must consist of an even number of hex digits
+     * only. Otherwise whitespace is skipped and an odd number of digits is
+     * read as if it had a leading zero.
+     *
+     * @param hex the hex-encoded bytes.
+     * @param bytes the buffer to decode into, see buffer(String).
+     * @param strict whether the input should be validated strictly.
+     * @return the number of decoded bytes.
+     * @exception IllegalArgumentException if the input is not valid.
+     */
+    public static int decode(String hex, byte[] bytes, boolean strict) {
+        int length = hex.length();
+        if (strict && (length & 1) != 0) {
+            throw new IllegalArgumentException(
+                    "odd number of hex digits: " + length);
+        }
+
+        int count = 0;
+        int digits = strict ? 0 : countDigits(hex);
+        boolean high = (digits & 1) == 0;
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = hex.charAt(i);
+            int nibble = c < VALUES.length ? VALUES[c] : -1;
+            if (nibble < 0) {
+                if (!strict && Character.isWhitespace(c)) {
+                    continue;
+                }
+                throw new IllegalArgumentException(
+                        "invalid hex digit '" + c + "' at index " + i);
+            }
+
+            if (high) {
+                value = nibble << 4;
+            } else {
+                bytes[count++] = (byte) (value | nibble);
+            }
+            high = !high;
+        }
+
+        return count;
+    }
+
+    /**
+     * Decode a string of hex digits into a new byte-array.
+     *
+     * @param hex the hex-encoded bytes.
+     * @param strict whether the input should be validated strictly.
+     * @return the decoded bytes.
+     * @exception IllegalArgumentException if the input is not valid.
+     */
+    public static byte[] decode(String hex, boolean strict) {
+        byte[] bytes = new byte[(hex.length() + 1) / 2];
+        int count = decode(hex, bytes, strict);
+        if (count == bytes.length) {
+            return bytes;
+        }
+
+        byte[] result = new byte[count];
+        System.arraycopy(bytes, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Count the characters in a string which are not whitespace.
+     */
+    private static int countDigits(String hex) {
+        int digits = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            if (!Character.isWhitespace(hex.charAt(i))) {
+                digits++;
+            }
+        }
+        return digits;
+    }
+}
@@ -0,0 +1,282 @@
+package org.irmacard.scjs;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON support for the messages of the headless bridge. Parsed 
+ * objects become maps, arrays become lists and numbers become longs or 
+ * doubles.
+ */
+public final class Json {
+
+    private final String text;
+    private int position;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parse a JSON value.
+     *
+     * @param text the JSON text.
+     * @return the parsed value.
+     * @exception IllegalArgumentException if the text is not valid JSON.
+     */
+    public static Object parse(String text) {
+        Json parser = new Json(text);
+        Object value = parser.value();
+        parser.skipWhitespace();
+        if (parser.position < text.length()) {
+            throw parser.error("trailing characters");
+        }
+        return value;
+    }
+
+    /**
+     * Append a string to a JSON text as a quoted string.
+     *
+     * @param json the JSON text.
+     * @param value the string to append.
+     * @return the JSON text.
+     */
+    public static StringBuilder quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                json.append("\\\"");
+                break;
+            case '\\':
+                json.append("\\\\");
+                break;
+            case '\n':
+                json.append("\\n");
+                break;
+            case '\r':
+                json.append("\\r");
+                break;
+            case '\t':
+                json.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * Append a value to a JSON text. Numbers and booleans are appended as 
+     * such, null as null, and other values as their quoted string 
+     * representation.
+     *
+     * @param json the JSON text.
+     * @param value the value to append.
+     * @return the JSON text.
+     */
+    public static StringBuilder append(StringBuilder json, Object value) {
+        if (value == null) {
+            return json.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return json.append(value);
+        }
+        return quote(json, value.toString());
+    }
+
+    private Object value() {
+        skipWhitespace();
+        if (position >= text.length()) {
+            throw error("unexpected end");
+        }
+
+        char c = text.charAt(position);
+        switch (c) {
+        case '{':
+            return object();
+        case '[':
+            return array();
+        case '"':
+            return string();
+        case 't':
+            return literal("true", Boolean.TRUE);
+        case 'f':
+            return literal("false", Boolean.FALSE);
+        case 'n':
+            return literal("null", null);
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                return number();
+            }
+            throw error("unexpected '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> object = new LinkedHashMap<String, Object>();
+        position++;
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            return object;
+        }
+
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("expected member name");
+            }
+            String name = string();
+            skipWhitespace();
+            expect(':');
+            object.put(name, value());
+            skipWhitespace();
+            if (peek() == ',') {
+                position++;
+            } else {
+                expect('}');
+                return object;
+            }
+        }
+    }
+
+    private List<Object> array() {
+        List<Object> array = new ArrayList<Object>();
+        position++;
+        skipWhitespace();
+        if (peek() == ']') {
+            position++;
+            return array;
+        }
+
+        while (true) {
+            array.add(value());
+            skipWhitespace();
+            if (peek() == ',') {
+                position++;
+            } else {
+                expect(']');
+                return array;
+            }
+        }
+    }
+
+    private String string() {
+        StringBuilder string = new StringBuilder();
+        position++;
+        while (true) {
+            if (position >= text.length()) {
+                throw error("unterminated string");
+            }
+            char c = text.charAt(position++);
+            if (c == '"') {
+                return string.toString();
+            } else if (c != '\\') {
+                string.append(c);
+                continue;
+            }
+
+            if (position >= text.length()) {
+                throw error("unterminated string");
+            }
+            c = text.charAt(position++);
+            switch (c) {
+            case 'b':
+                string.append('\b');
+                break;
+            case 'f':
+                string.append('\f');
+                break;
+            case 'n':
+                string.append('\n');
+                break;
+            case 'r':
+                string.append('\r');
+                break;
+            case 't':
+                string.append('\t');
+                break;
+            case 'u':
+                if (position + 4 > text.length()) {
+                    throw error("truncated escape");
+                }
+                try {
+                    string.append((char) Integer.parseInt(
+                            text.substring(position, position + 4), 16));
+                } catch (NumberFormatException e) {
+                    throw error("invalid escape");
+                }
+                position += 4;
+                break;
+            default:
+                string.append(c);
+            }
+        }
+    }
+
+    private Object number() {
+        int start = position;
+        boolean integral = true;
+        while (position < text.length()) {
+            char c = text.charAt(position);
+            if (c == '.' || c == 'e' || c == 'E') {
+                integral = false;
+            } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                break;
+            }
+            position++;
+        }
+
+        String number = text.substring(start, position);
+        try {
+            if (integral) {
+                return Long.valueOf(number);
+            }
+            return Double.valueOf(number);
+        } catch (NumberFormatException e) {
+            throw error("invalid number " + number);
+        }
+    }
+
+    private Object literal(String literal, Object value) {
+        if (!text.startsWith(literal, position)) {
+            throw error("unexpected '" + text.charAt(position) + "'");
+        }
+        position += literal.length();
+        return value;
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length() 
+                && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+    }
+
+    private char peek() {
+        if (position >= text.length()) {
+            throw error("unexpected end");
+        }
+        return text.charAt(position);
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        position++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(
+                "invalid JSON at index " + position + ": " + message);
+    }
+}
@@ -71,12 +71,12 @@ public class PinListener implements IPinVerificationListener {
 
 	@Override
 	public void pinPadPinRequired(Integer nr_tries_left) {
-		scjs.emit(new Signal(scjs, "pin-pad-pin-required"));
+		scjs.emit("pin-pad-pin-required");
 	}
 
 	@Override
-	public void pinPadPinEntered() {
-		scjs.emit(new Signal(scjs, "pin-pad-pin-entered"));
+	public void pinPadPinEntered(String status) {
+		scjs.emit("pin-pad-pin-entered", status);
 	}
 
 }
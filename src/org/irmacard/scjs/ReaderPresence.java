@@ -0,0 +1,265 @@
+package org.irmacard.scjs;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+/**
+ * Index of the available readers and whether a card is present in them. The
+ * index is maintained from the card manager events, so the lists of readers
+ * and cards can be answered without querying the readers.
+ * 
+ * Every change increments the version of the index, and the most recent 
+ * changes are kept so they can be requested incrementally.
+ */
+public class ReaderPresence {
+
+    /**
+     * The number of changes which are kept for incremental requests.
+     */
+    private static final int MAX_CHANGES = 256;
+
+    /**
+     * The available readers, by name, mapped to whether a card is present.
+     */
+    private final Map<String, Boolean> readers =
+            new ConcurrentSkipListMap<String, Boolean>();
+
+    /**
+     * Newline separated names of the available readers.
+     */
+    private volatile String readerList = "";
+
+    /**
+     * Newline separated names of the readers with a card present.
+     */
+    private volatile String cardList = "";
+
+    /**
+     * The version of the index, incremented on every change.
+     */
+    private volatile long version = 0;
+
+    /**
+     * The most recent changes, the last one having the current version.
+     */
+    private final Deque<String> changes = new ArrayDeque<String>();
+
+    /**
+     * Get the names of the available readers.
+     *
+     * @return newline separated reader names.
+     */
+    public String getReaderList() {
+        return readerList;
+    }
+
+    /**
+     * Get the names of the readers with a card present.
+     *
+     * @return newline separated reader names.
+     */
+    public String getCardList() {
+        return cardList;
+    }
+
+    /**
+     * Get the current version of the index.
+     *
+     * @return the version of the index.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the changes of the index since the given version.
+     *
+     * The result is empty if nothing changed. Otherwise the first line holds
+     * the current version, followed by a line per change: "+reader", 
+     * "-reader", "+card" or "-card" and the name of the reader. If the 
+     * changes since the given version are no longer known, a line "reset" 
+     * follows the version and the full state is described as additions.
+     *
+     * @param since the version known to the caller.
+     * @return newline separated changes since the given version.
+     */
+    public String getStateSince(long since) {
+        if (since == version) {
+            return "";
+        }
+
+        synchronized (this) {
+            StringBuilder state = new StringBuilder();
+            state.append(version);
+
+            long base = version - changes.size();
+            if (since < base || since > version) {
+                state.append("\nreset");
+                for (Map.Entry<String, Boolean> reader : readers.entrySet()) {
+                    state.append("\n+reader ").append(reader.getKey());
+                    if (reader.getValue()) {
+                        state.append("\n+card ").append(reader.getKey());
+                    }
+                }
+            } else {
+                long skip = since - base;
+                for (String change : changes) {
+                    if (skip-- <= 0) {
+                        state.append('\n').append(change);
+                    }
+                }
+            }
+
+            return state.toString();
+        }
+    }
+
+    /**
+     * Check whether a card is present in a reader.
+     *
+     * @param reader the name of the reader.
+     * @return whether the reader is available and holds a card.
+     */
+    public boolean isCardPresent(String reader) {
+        return Boolean.TRUE.equals(readers.get(reader));
+    }
+
+    /**
+     * Record that a reader has become available.
+     *
+     * @param reader the name of the reader.
+     */
+    public synchronized void readerAdded(String reader) {
+        if (!readers.containsKey(reader)) {
+            readers.put(reader, Boolean.FALSE);
+            record("+reader ", reader);
+            update();
+        }
+    }
+
+    /**
+     * Record that a reader is no longer available.
+     *
+     * @param reader the name of the reader.
+     */
+    public synchronized void readerRemoved(String reader) {
+        Boolean present = readers.remove(reader);
+        if (present != null) {
+            if (present) {
+                record("-card ", reader);
+            }
+            record("-reader ", reader);
+            update();
+        }
+    }
+
+    /**
+     * Record that a card has been inserted in a reader.
+     *
+     * @param reader the name of the reader.
+     */
+    public synchronized void cardInserted(String reader) {
+        Boolean present = readers.put(reader, Boolean.TRUE);
+        if (present == null) {
+            record("+reader ", reader);
+        }
+        if (!Boolean.TRUE.equals(present)) {
+            record("+card ", reader);
+            update();
+        }
+    }
+
+    /**
+     * Record that a card has been removed from a reader.
+     *
+     * @param reader the name of the reader.
+     */
+    public synchronized void cardRemoved(String reader) {
+        if (readers.containsKey(reader)
+                && Boolean.TRUE.equals(readers.put(reader, Boolean.FALSE))) {
+            record("-card ", reader);
+            update();
+        }
+    }
+
+    /**
+     * Rebuild the index by querying the given readers. The readers are
+     * queried before the index is locked, so a slow reader does not hold up
+     * the events of the others.
+     *
+     * @param terminals the currently available readers.
+     */
+    public void refresh(List<CardTerminal> terminals) {
+        Map<String, Boolean> current = new HashMap<String, Boolean>();
+        for (CardTerminal terminal : terminals) {
+            boolean present = false;
+            try {
+                present = terminal.isCardPresent();
+            } catch (CardException e) {
+                e.printStackTrace();
+            }
+            current.put(terminal.getName(), present);
+        }
+        refresh(current);
+    }
+
+    /**
+     * Rebuild the index from the queried state of the readers.
+     */
+    private synchronized void refresh(Map<String, Boolean> current) {
+        for (String reader : readers.keySet()) {
+            if (!current.containsKey(reader)) {
+                readerRemoved(reader);
+            }
+        }
+        for (Map.Entry<String, Boolean> reader : current.entrySet()) {
+            readerAdded(reader.getKey());
+            if (reader.getValue()) {
+                cardInserted(reader.getKey());
+            } else {
+                cardRemoved(reader.getKey());
+            }
+        }
+    }
+
+    /**
+     * Record a change of the index and increment its version.
+     */
+    private void record(String change, String reader) {
+        if (changes.size() == MAX_CHANGES) {
+            changes.removeFirst();
+        }
+        changes.addLast(change + reader);
+        version++;
+    }
+
+    /**
+     * Rebuild the lists of names after a change of the index.
+     */
+    private void update() {
+        StringBuilder readerNames = new StringBuilder();
+        StringBuilder cardNames = new StringBuilder();
+        for (Map.Entry<String, Boolean> reader : readers.entrySet()) {
+            append(readerNames, reader.getKey());
+            if (reader.getValue()) {
+                append(cardNames, reader.getKey());
+            }
+        }
+        readerList = readerNames.toString();
+        cardList = cardNames.toString();
+    }
+
+    private static void append(StringBuilder list, String name) {
+        if (list.length() > 0) {
+            list.append('\n');
+        }
+        list.append(name);
+    }
+}
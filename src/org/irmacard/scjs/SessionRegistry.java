@@ -0,0 +1,284 @@
+package org.irmacard.scjs;
+
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.CardTerminal;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.TerminalCardService;
+
+import org.irmacard.chvservice.APDUMetrics;
+import org.irmacard.chvservice.CapabilityCache;
+import org.irmacard.chvservice.CardHolderVerificationService;
+import org.irmacard.chvservice.IPinVerificationListener;
+import org.irmacard.chvservice.ResponseCache;
+
+/**
+ * Registry of the sessions with the cards in the available readers, with at
+ * most one session per reader.
+ */
+public class SessionRegistry {
+
+    /**
+     * Source of session handles.
+     */
+    private final AtomicInteger handles = new AtomicInteger();
+
+    /**
+     * The open sessions by handle.
+     */
+    private final ConcurrentMap<Integer, CardSession> sessions =
+            new ConcurrentHashMap<Integer, CardSession>();
+
+    /**
+     * The open sessions by reader name.
+     */
+    private final ConcurrentMap<String, CardSession> readers =
+            new ConcurrentHashMap<String, CardSession>();
+
+    /**
+     * Cache of reader capabilities shared by the sessions.
+     */
+    private final CapabilityCache capabilityCache;
+
+    /**
+     * Metrics to which the sessions record their APDUs.
+     */
+    private final APDUMetrics metrics;
+
+    /**
+     * Cache of responses shared by the sessions, or null.
+     */
+    private volatile ResponseCache responseCache = null;
+
+    /**
+     * Whether the sessions reconnect after a card reset, and replay the
+     * last SELECT after doing so.
+     */
+    private volatile boolean autoReconnect = false;
+    private volatile boolean replaySelect = false;
+
+    /**
+     * Time in milliseconds for entering the PIN on a PIN-pad.
+     */
+    private volatile long pinPadTimeout = 
+            CardHolderVerificationService.DEFAULT_PIN_PAD_TIMEOUT;
+
+    /**
+     * Construct a new SessionRegistry.
+     *
+     * @param capabilityCache the cache of reader capabilities for the 
+     *        sessions, or null if capabilities should not be cached.
+     * @param metrics the metrics to which the sessions record their APDUs,
+     *        or null if they should not be recorded.
+     */
+    public SessionRegistry(CapabilityCache capabilityCache, APDUMetrics metrics) {
+        this.capabilityCache = capabilityCache;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the session with the card in a reader, opening one if needed.
+     * There is no lock on the registry: a new session is registered for the
+     * reader first and the card is then opened on the thread of the session,
+     * so a slow card only holds up the callers for the same reader.
+     *
+     * @param reader the reader holding the card.
+     * @param listener the listener for PIN verification of a new session.
+     * @return the session with the card.
+     * @exception CardServiceException if the card could not be opened.
+     */
+    public CardSession connect(CardTerminal reader,
+            IPinVerificationListener listener) throws CardServiceException {
+        String name = reader.getName();
+        while (true) {
+            CardSession session = readers.get(name);
+            boolean created = false;
+            if (session == null) {
+                CardSession fresh = new CardSession(handles.incrementAndGet(), name,
+                        createService(reader, listener));
+                session = readers.putIfAbsent(name, fresh);
+                if (session == null) {
+                    // Operations on the handle queue up behind the opening
+                    session = fresh;
+                    sessions.put(session.getHandle(), session);
+                    created = true;
+                }
+            }
+
+            try {
+                session.open();
+            } catch (CardServiceException e) {
+                if (created) {
+                    disconnect(session.getHandle());
+                    throw e;
+                }
+                // The session of another caller failed; try a session of our own
+                continue;
+            }
+
+            if (!session.isClosed() && session.getService().isOpen()) {
+                return session;
+            }
+            disconnect(session.getHandle());
+            if (created) {
+                // Disconnected while opening, e.g. because the card was removed
+                throw new CardServiceException("Card disconnected.");
+            }
+        }
+    }
+
+    private CardHolderVerificationService createService(CardTerminal reader,
+            IPinVerificationListener listener) {
+        CardHolderVerificationService service = new CardHolderVerificationService(
+                new TerminalCardService(reader));
+        service.addPinVerificationListener(listener);
+        service.setCapabilityCache(capabilityCache);
+        service.setPinPadTimeout(pinPadTimeout);
+        service.setMetrics(metrics);
+        service.setResponseCache(responseCache);
+        service.setAutoReconnect(autoReconnect, replaySelect);
+        return service;
+    }
+
+    /**
+     * Open a session with the card in a reader ahead of a request from the
+     * page, reading the ATR and optionally selecting an application on the
+     * thread of the session. A later connect returns the warm session.
+     *
+     * @param reader the reader holding the card.
+     * @param listener the listener for PIN verification of a new session.
+     * @param select the encoded SELECT command to send, or null.
+     * @return the session with the card.
+     * @exception CardServiceException if the card could not be opened or
+     *            did not accept the command.
+     */
+    public CardSession warmUp(CardTerminal reader, IPinVerificationListener listener,
+            final byte[] select) throws CardServiceException {
+        final CardSession session = connect(reader, listener);
+        try {
+            session.execute(new PrivilegedExceptionAction<Object>() {
+                public Object run() throws CardServiceException {
+                    session.getService().getATR();
+                    if (select != null) {
+                        session.getService().transmit(new CommandAPDU(select));
+                    }
+                    return null;
+                }
+            });
+        } catch (PrivilegedActionException e) {
+            if (e.getException() instanceof CardServiceException) {
+                throw (CardServiceException) e.getException();
+            }
+            throw new CardServiceException(e.getException().toString());
+        }
+        return session;
+    }
+
+    /**
+     * Set the time the user gets to enter the PIN on a PIN-pad, for the open
+     * sessions and those opened later on.
+     *
+     * @param timeout the time in milliseconds.
+     */
+    public void setPinPadTimeout(long timeout) {
+        for (CardSession session : sessions.values()) {
+            session.getService().setPinPadTimeout(timeout);
+        }
+        pinPadTimeout = timeout;
+    }
+
+    /**
+     * Set the cache of responses for the open sessions and those opened later
+     * on.
+     *
+     * @param cache the cache, or null to transmit all commands to the card.
+     */
+    public void setResponseCache(ResponseCache cache) {
+        responseCache = cache;
+        for (CardSession session : sessions.values()) {
+            session.getService().setResponseCache(cache);
+        }
+    }
+
+    /**
+     * Enable or disable reconnecting after a card reset for the open 
+     * sessions and those opened later on.
+     *
+     * @param enabled whether to reconnect transparently.
+     * @param replay whether to send the last successful SELECT again after
+     *        reconnecting.
+     */
+    public void setAutoReconnect(boolean enabled, boolean replay) {
+        autoReconnect = enabled;
+        replaySelect = replay;
+        for (CardSession session : sessions.values()) {
+            session.getService().setAutoReconnect(enabled, replay);
+        }
+    }
+
+    /**
+     * Get an open session.
+     *
+     * @param handle the handle of the session.
+     * @return the session, or null if there is no such session.
+     */
+    public CardSession get(int handle) {
+        return sessions.get(handle);
+    }
+
+    /**
+     * Get the open session with the card in a reader.
+     *
+     * @param reader the name of the reader.
+     * @return the session, or null if there is no such session.
+     */
+    public CardSession get(String reader) {
+        return readers.get(reader);
+    }
+
+    /**
+     * Close a session.
+     *
+     * @param handle the handle of the session.
+     * @return whether the session was open.
+     */
+    public boolean disconnect(int handle) {
+        CardSession session = sessions.remove(handle);
+        if (session == null) {
+            return false;
+        }
+
+        readers.remove(session.getReader(), session);
+        session.close();
+        return true;
+    }
+
+    /**
+     * Close the session with the card in a reader.
+     *
+     * @param reader the name of the reader.
+     * @return whether a session was open.
+     */
+    public boolean disconnect(String reader) {
+        CardSession session = readers.get(reader);
+        return session != null && disconnect(session.getHandle());
+    }
+
+    /**
+     * Close all sessions.
+     */
+    public void disconnectAll() {
+        List<Integer> open = new ArrayList<Integer>(sessions.keySet());
+        for (Integer handle : open) {
+            disconnect(handle);
+        }
+    }
+}
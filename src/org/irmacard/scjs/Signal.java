@@ -1,7 +1,12 @@
 package org.irmacard.scjs;
 
+import java.util.Arrays;
 import java.util.EventObject;
 
+import javax.smartcardio.CardTerminal;
+
+import net.sourceforge.scuba.smartcards.TerminalCardService;
+
 /**
  * A Signal is constructed with a reference to the object, the "source", that
  * is logically deemed to be the object which emitted the Signal in question.
@@ -22,6 +27,26 @@ public class Signal extends EventObject {
      */
     protected Object[] attributes;
     
+    /**
+     * The time at which this Signal was emitted, in milliseconds.
+     */
+    protected final long timestamp = System.currentTimeMillis();
+    
+    /**
+     * The name of the reader to which this Signal relates, if any.
+     */
+    protected String reader;
+    
+    /**
+     * The ATR of the card to which this Signal relates, if any.
+     */
+    protected byte[] atr;
+    
+    /**
+     * The serialized form of this Signal, built on first use.
+     */
+    private transient volatile String json;
+    
     /**
      * Constructs a Signal without any attributes.
      *
@@ -44,7 +69,8 @@ public class Signal extends EventObject {
      *
      * @param source The object which emitted the Signal.
      * @param event The event for which this Signal was emitted.
-     * @param attributes The additional data to go with this Signal. 
+     * @param attributes The additional data to go with this Signal, or null
+     *            for none.
      * @exception IllegalArgumentException if source is null or event is empty.
      */
     public Signal(Object source, String event, Object[] attributes) {
@@ -54,7 +80,35 @@ public class Signal extends EventObject {
             throw new IllegalArgumentException("empty signal");
 
         this.event = event;
-        this.attributes = attributes;
+        this.attributes = attributes == null ? new Object[0] : attributes;
+        
+        for (Object attribute : this.attributes) {
+            if (attribute instanceof CardTerminal) {
+                reader = ((CardTerminal) attribute).getName();
+            } else if (attribute instanceof TerminalCardService) {
+                reader = ((TerminalCardService) attribute).getTerminal().getName();
+            }
+        }
+    }
+    
+    /**
+     * Constructs a Signal relating to the card in a reader. The ATR is not 
+     * read from the card here, it has to be passed by the emitter which 
+     * holds the connected card.
+     *
+     * @param source The object which emitted the Signal.
+     * @param event The event for which this Signal was emitted.
+     * @param attributes The additional data to go with this Signal. 
+     * @param reader The name of the reader.
+     * @param atr The ATR of the card, or null if it is not known.
+     * @exception IllegalArgumentException if source is null or event is empty.
+     */
+    public Signal(Object source, String event, Object[] attributes, 
+            String reader, byte[] atr) {
+        this(source, event, attributes);
+        
+        this.reader = reader;
+        this.atr = atr == null ? null : atr.clone();
     }
     
     /**
@@ -75,6 +129,80 @@ public class Signal extends EventObject {
         return attributes;
     }
     
+    /**
+     * The time at which this Signal was emitted.
+     * 
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    /**
+     * The name of the reader to which this Signal relates.
+     * 
+     * @return The name of the reader, or null if there is none.
+     */
+    public String getReader() {
+        return reader;
+    }
+    
+    /**
+     * The ATR of the card to which this Signal relates.
+     * 
+     * @return The ATR, or null if there is none.
+     */
+    public byte[] getATR() {
+        return atr == null ? null : atr.clone();
+    }
+    
+    /**
+     * Serializes this Signal as a JSON object with the members event, 
+     * timestamp, reader and atr (hex), the latter two only when known, and 
+     * args. Readers and card services among the attributes are described by 
+     * the name of their reader, byte arrays are hex-encoded. The JSON text 
+     * is built only once, so it can be handed to any number of receivers.
+     * 
+     * @return The JSON text of this Signal.
+     */
+    public String toJSON() {
+        String result = json;
+        if (result == null) {
+            StringBuilder builder = new StringBuilder(64);
+            Json.quote(builder.append("{\"event\":"), event);
+            builder.append(",\"timestamp\":").append(timestamp);
+            if (reader != null) {
+                Json.quote(builder.append(",\"reader\":"), reader);
+            }
+            if (atr != null) {
+                builder.append(",\"atr\":\"").append(HexCodec.encode(atr)).append('"');
+            }
+            builder.append(",\"args\":[");
+            for (int i = 0; i < attributes.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                Json.append(builder, describe(attributes[i]));
+            }
+            json = result = builder.append("]}").toString();
+        }
+        return result;
+    }
+    
+    /**
+     * Describe an attribute by a value which can be serialized.
+     */
+    private static Object describe(Object attribute) {
+        if (attribute instanceof CardTerminal) {
+            return ((CardTerminal) attribute).getName();
+        } else if (attribute instanceof TerminalCardService) {
+            return ((TerminalCardService) attribute).getTerminal().getName();
+        } else if (attribute instanceof byte[]) {
+            return HexCodec.encode((byte[]) attribute);
+        }
+        return attribute;
+    }
+    
     /**
      * Returns a String representation of this Signal.
      *
@@ -82,6 +210,7 @@ public class Signal extends EventObject {
      */
     public String toString() {
         return getClass().getName() + "[source=" + source + 
-                "; event=" + event +"; attributes=" + attributes + "]";
+                "; event=" + event + "; attributes=" + 
+                Arrays.toString(attributes) + "]";
     }
 }
@@ -0,0 +1,304 @@
+package org.irmacard.scjs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Delivers emitted signals from a single thread, in the order in which they
+ * were emitted. All signals pending at a wakeup are handed over as one batch.
+ *
+ * The number of pending reader and card events is bounded; when the queue is
+ * full the oldest pending event is dropped, or the new one if no event is
+ * pending. Other signals, such as the completion of an asynchronous request,
+ * are never dropped, as the page may be waiting for them. Bursts of reader and card events, as produced by
+ * loose contacts and contactless readers, are coalesced while they are
+ * pending: a cardInserted or terminalAdded signal is cancelled by a later
+ * cardRemoved or terminalRemoved signal for the same reader, and a repeated
+ * event for the same reader replaces the pending one. With a debounce window,
+ * these events are held back for the window, so the bursts can be coalesced
+ * before the page sees them.
+ */
+public class SignalDispatcher implements Runnable {
+
+    /**
+     * Receiver of the batches of signals.
+     */
+    public interface Sink {
+
+        /**
+         * Handle a batch of signals.
+         *
+         * @param signals the pending signals, in emission order.
+         */
+        public void dispatch(Signal[] signals);
+    }
+
+    /**
+     * Default maximum number of pending signals.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Signals which still have to be dispatched, guarded by this dispatcher.
+     */
+    private final Deque<Signal> queue = new ArrayDeque<Signal>();
+
+    /**
+     * Receiver of the dispatched signals.
+     */
+    private final Sink sink;
+
+    /**
+     * Console to report failures of the receiver to, or null.
+     */
+    private final Console console;
+
+    /**
+     * Thread which dispatches the signals.
+     */
+    private final Thread thread;
+
+    private int capacity = DEFAULT_CAPACITY;
+    private long debounce = 0;
+    private boolean stopped = false;
+
+    /**
+     * Number of signals which were cancelled or replaced by a later signal.
+     */
+    private long coalesced = 0;
+
+    /**
+     * Number of reader and card events which were dropped because the queue
+     * was full.
+     */
+    private long dropped = 0;
+
+    /**
+     * Construct a new SignalDispatcher.
+     *
+     * @param sink the receiver of the dispatched signals.
+     */
+    public SignalDispatcher(Sink sink) {
+        this(null, sink);
+    }
+
+    /**
+     * Construct a new SignalDispatcher which reports failures of the
+     * receiver to a console.
+     *
+     * @param console the console, or null to report to the error stream.
+     * @param sink the receiver of the dispatched signals.
+     */
+    public SignalDispatcher(Console console, Sink sink) {
+        this.console = console;
+        this.sink = sink;
+        this.thread = new Thread(this, "SmartCardJS signal dispatcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start dispatching signals.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop dispatching signals once the signals emitted so far have been
+     * dispatched.
+     */
+    public synchronized void shutdown() {
+        stopped = true;
+        debounce = 0;
+        notifyAll();
+    }
+
+    /**
+     * Set the maximum number of pending signals, beyond which reader and
+     * card events are dropped.
+     *
+     * @param capacity the number of signals, at least 1.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        while (queue.size() > capacity && evict()) {
+            // drop the oldest events
+        }
+    }
+
+    /**
+     * Set the window for which reader and card events are held back to be
+     * coalesced with later events.
+     *
+     * @param millis the window in milliseconds, 0 to dispatch immediately.
+     */
+    public synchronized void setDebounce(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("invalid debounce window: " + millis);
+        }
+        debounce = millis;
+        notifyAll();
+    }
+
+    /**
+     * Queue a signal for dispatching.
+     *
+     * @param signal the signal to be dispatched.
+     */
+    public synchronized void enqueue(Signal signal) {
+        if (stopped) {
+            return;
+        }
+        if (coalesce(signal)) {
+            return;
+        }
+        if (queue.size() >= capacity && !evict() && isCoalescable(signal)) {
+            dropped++;
+            return;
+        }
+        queue.addLast(signal);
+        notifyAll();
+    }
+
+    /**
+     * Drop the oldest pending reader or card event.
+     *
+     * @return whether an event was dropped.
+     */
+    private boolean evict() {
+        for (Iterator<Signal> i = queue.iterator(); i.hasNext(); ) {
+            if (isCoalescable(i.next())) {
+                i.remove();
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Coalesce a signal with the pending signals of its reader.
+     *
+     * @return whether the signal cancelled a pending one, so it need not be
+     *         queued itself.
+     */
+    private boolean coalesce(Signal signal) {
+        if (!isCoalescable(signal)) {
+            return false;
+        }
+
+        // Only the most recent pending event of the reader is considered, so
+        // the order of the events of a reader is kept
+        for (Iterator<Signal> i = queue.descendingIterator(); i.hasNext(); ) {
+            Signal pending = i.next();
+            if (!isCoalescable(pending) || !pending.getReader().equals(signal.getReader())) {
+                continue;
+            }
+            if (pending.getEvent().equals(signal.getEvent())) {
+                i.remove();
+                coalesced++;
+                return false;
+            } else if (cancels(signal.getEvent(), pending.getEvent())) {
+                i.remove();
+                coalesced += 2;
+                return true;
+            }
+            return false;
+        }
+        return false;
+    }
+
+    private static boolean isCoalescable(Signal signal) {
+        String event = signal.getEvent();
+        return signal.getReader() != null && (event.equals("cardInserted")
+                || event.equals("cardRemoved") || event.equals("terminalAdded")
+                || event.equals("terminalRemoved"));
+    }
+
+    /**
+     * Check whether an event undoes a pending event. A removal followed by
+     * an insertion is kept, since the card may have been replaced.
+     */
+    private static boolean cancels(String event, String pending) {
+        return (event.equals("cardRemoved") && pending.equals("cardInserted"))
+                || (event.equals("terminalRemoved") && pending.equals("terminalAdded"));
+    }
+
+    /**
+     * Wait for signals which are due and take them from the queue.
+     *
+     * @param batch the list to add the due signals to.
+     * @return whether the dispatcher should keep running.
+     */
+    private synchronized boolean take(List<Signal> batch) throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long wait = 0;
+            while (!queue.isEmpty()) {
+                Signal head = queue.peekFirst();
+                if (debounce > 0 && isCoalescable(head)) {
+                    long due = head.getTimestamp() + debounce;
+                    if (due > now) {
+                        wait = due - now;
+                        break;
+                    }
+                }
+                batch.add(queue.removeFirst());
+            }
+            if (!batch.isEmpty()) {
+                return true;
+            } else if (stopped && queue.isEmpty()) {
+                return false;
+            }
+            wait(wait);
+        }
+    }
+
+    public void run() {
+        List<Signal> batch = new ArrayList<Signal>();
+
+        try {
+            while (take(batch)) {
+                // A failing receiver must not stop the delivery of later signals
+                try {
+                    sink.dispatch(batch.toArray(new Signal[batch.size()]));
+                } catch (RuntimeException e) {
+                    if (console != null) {
+                        console.error("Failed to dispatch " + batch.size()
+                                + " signals due to an Exception: " + e);
+                    } else {
+                        e.printStackTrace();
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Stop dispatching
+        }
+    }
+
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Describe the state of the queue as a JSON object with the members
+     * pending, coalesced and dropped.
+     *
+     * @return the JSON object.
+     */
+    public synchronized String toJSON() {
+        return "{\"pending\":" + queue.size() + ",\"coalesced\":" + coalesced
+                + ",\"dropped\":" + dropped + "}";
+    }
+}
@@ -0,0 +1,158 @@
+package org.irmacard.scjs;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Set of events to which a signal handler subscribed. Events are given by
+ * name or by a pattern in which "*" matches any sequence of characters, e.g.
+ * "card*" or "pin-pad-*"; "*" alone subscribes to all events. The decision
+ * for an event is remembered until the subscriptions change, so checking an
+ * event before emitting a signal for it is cheap.
+ */
+public class SignalFilter {
+
+    /**
+     * The patterns to which was subscribed, as given.
+     */
+    private final List<String> patterns = new CopyOnWriteArrayList<String>();
+
+    /**
+     * The compiled patterns, in the same order.
+     */
+    private final List<Pattern> compiled = new CopyOnWriteArrayList<Pattern>();
+
+    /**
+     * Decisions per event name.
+     */
+    private final ConcurrentMap<String, Boolean> decisions =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Construct a SignalFilter without subscriptions.
+     */
+    public SignalFilter() {
+    }
+
+    /**
+     * Construct a SignalFilter with subscriptions.
+     *
+     * @param events the events, see subscribe(String).
+     */
+    public SignalFilter(String events) {
+        subscribe(events);
+    }
+
+    /**
+     * Subscribe to events.
+     *
+     * @param events names or patterns of events, separated by commas,
+     *        semicolons or whitespace.
+     */
+    public synchronized void subscribe(String events) {
+        for (String pattern : split(events)) {
+            if (!patterns.contains(pattern)) {
+                patterns.add(pattern);
+                compiled.add(compile(pattern));
+            }
+        }
+        decisions.clear();
+    }
+
+    /**
+     * Cancel subscriptions. Only the given names or patterns are removed, so
+     * unsubscribing from "cardRemoved" after subscribing to "card*" has no
+     * effect.
+     *
+     * @param events names or patterns of events, see subscribe(String).
+     */
+    public synchronized void unsubscribe(String events) {
+        for (String pattern : split(events)) {
+            int index = patterns.indexOf(pattern);
+            if (index >= 0) {
+                patterns.remove(index);
+                compiled.remove(index);
+            }
+        }
+        decisions.clear();
+    }
+
+    /**
+     * Cancel all subscriptions.
+     */
+    public synchronized void clear() {
+        patterns.clear();
+        compiled.clear();
+        decisions.clear();
+    }
+
+    /**
+     * Check whether an event was subscribed to.
+     *
+     * @param event the name of the event.
+     * @return whether signals for the event should be delivered.
+     */
+    public boolean accepts(String event) {
+        Boolean decision = decisions.get(event);
+        if (decision == null) {
+            decision = decide(event);
+        }
+        return decision.booleanValue();
+    }
+
+    /**
+     * Match an event against the patterns and remember the decision. This
+     * is done while holding the lock, so a decision cannot outlive a change
+     * of the subscriptions.
+     */
+    private synchronized Boolean decide(String event) {
+        Boolean decision = Boolean.FALSE;
+        for (Pattern pattern : compiled) {
+            if (pattern.matcher(event).matches()) {
+                decision = Boolean.TRUE;
+                break;
+            }
+        }
+        decisions.put(event, decision);
+        return decision;
+    }
+
+    /**
+     * @return the subscribed names and patterns, separated by commas.
+     */
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (String pattern : patterns) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(pattern);
+        }
+        return result.toString();
+    }
+
+    private static String[] split(String events) {
+        String trimmed = events == null ? "" : events.trim();
+        return trimmed.length() == 0 ? new String[0] : trimmed.split("[,;\\s]+");
+    }
+
+    private static Pattern compile(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        int star;
+        while ((star = pattern.indexOf('*', start)) >= 0) {
+            if (star > start) {
+                regex.append(Pattern.quote(pattern.substring(start, star)));
+            }
+            regex.append(".*");
+            start = star + 1;
+        }
+        if (start < pattern.length()) {
+            regex.append(Pattern.quote(pattern.substring(start)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
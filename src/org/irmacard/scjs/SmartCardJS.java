@@ -1,13 +1,22 @@
 package org.irmacard.scjs;
 
 import java.applet.Applet;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
 import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.smartcardio.CardException;
 import javax.smartcardio.CardTerminal;
@@ -21,11 +30,14 @@ import net.sourceforge.scuba.smartcards.CommandAPDU;
 import net.sourceforge.scuba.smartcards.ResponseAPDU;
 import net.sourceforge.scuba.smartcards.TerminalCardService;
 import net.sourceforge.scuba.smartcards.TerminalFactoryListener;
-import net.sourceforge.scuba.util.Hex;
 import netscape.javascript.JSException;
 import netscape.javascript.JSObject;
 
+import org.irmacard.chvservice.APDUMetrics;
+import org.irmacard.chvservice.CapabilityCache;
 import org.irmacard.chvservice.CardHolderVerificationService;
+import org.irmacard.chvservice.ReaderProfiles;
+import org.irmacard.chvservice.ResponseCache;
 
 public class SmartCardJS extends Applet
     implements CardTerminalListener, TerminalFactoryListener {
@@ -42,20 +54,38 @@ public class SmartCardJS extends Applet
      */
     private boolean signalsEnabled = false;
     
+    /**
+     * Whether the JavaScript signal handler takes a batch of signals per 
+     * call, instead of a single signal.
+     */
+    private volatile boolean signalBatches = false;
+    
     /**
      * JavaScript object which will handle signals emitted by the applet.
      */
     private String jsSignalHandler = null;
     
     /**
-     * Java object which will handle signals emitted by the applet.
+     * Events to which the JavaScript signal handler subscribed.
+     */
+    private final SignalFilter jsSubscriptions = new SignalFilter("*");
+    
+    /**
+     * Java objects which will handle signals emitted by the applet, besides 
+     * the console, with the events to which they subscribed.
      */
-    private SignalHandler jSignalHandler = null;
+    private final Map<SignalHandler, SignalFilter> jSignalHandlers = 
+            new ConcurrentHashMap<SignalHandler, SignalFilter>();
 
     /**
-     * Execution service to handle events asynchronously.
+     * Execution service to handle requests asynchronously.
      */
     private ExecutorService executorService = null;
+    
+    /**
+     * Dispatcher which delivers the emitted signals in order.
+     */
+    private SignalDispatcher signalDispatcher = null;
 
     /**
      * Console object to handle the output behaviour.
@@ -67,6 +97,17 @@ public class SmartCardJS extends Applet
      */
     private CardManager cardManager;    
     
+    /**
+     * Index of the available readers and cards, maintained from the events
+     * of the card manager.
+     */
+    private final ReaderPresence presence = new ReaderPresence();
+    
+    /**
+     * Source of identifiers for asynchronous requests.
+     */
+    private final AtomicInteger requestCounter = new AtomicInteger();
+    
     /*************************************************************************
      *** Applet life cycle functionality                                   ***
      *************************************************************************/
@@ -74,8 +115,22 @@ public class SmartCardJS extends Applet
     public void init() {
         console = new Console(this);
         console.traceCall("init()");
-        jSignalHandler = console;        
         executorService = Executors.newCachedThreadPool();        
+        signalDispatcher = new SignalDispatcher(console, new SignalDispatcher.Sink() {
+            public void dispatch(Signal[] signals) {
+                List<Signal> subscribed = new ArrayList<Signal>(signals.length);
+                for (Signal signal : signals) {
+                    jEmit(signal);
+                    if (jsSubscriptions.accepts(signal.getEvent())) {
+                        subscribed.add(signal);
+                    }
+                }
+                if (!subscribed.isEmpty()) {
+                    jsEmit(subscribed.toArray(new Signal[subscribed.size()]));
+                }
+            }
+        });
+        signalDispatcher.start();
         
         try {
             js = JSObject.getWindow(this);
@@ -83,13 +138,119 @@ public class SmartCardJS extends Applet
             e.printStackTrace();
         }
         
-        emit(new Signal(this, "appletInitialised"));
+        capabilityCache = new CapabilityCache(AccessController.doPrivileged(
+                new PrivilegedAction<File>() {
+            public File run() {
+                return new File(System.getProperty("user.home"), 
+                        ".smartcardjs-capabilities");
+            }
+        }));
+        try {
+            AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
+                public Object run() throws IOException {
+                    capabilityCache.load();
+                    return null;
+                }
+            });
+        } catch(PrivilegedActionException e) {
+            console.warning("Failed to load reader capabilities: " + 
+                    e.getException().getMessage());
+        }
+        sessions = new SessionRegistry(capabilityCache, metrics);
+        
+        String timeout = getParameter("pinPadTimeout");
+        if (timeout != null) {
+            try {
+                sessions.setPinPadTimeout(Long.parseLong(timeout.trim()));
+            } catch (IllegalArgumentException e) {
+                console.warning("Invalid pinPadTimeout: " + timeout);
+            }
+        }
+        
+        // The response cache is only used once commands are marked cacheable
+        int capacity = ResponseCache.DEFAULT_CAPACITY;
+        String cacheSize = getParameter("responseCacheSize");
+        if (cacheSize != null) {
+            try {
+                capacity = Integer.parseInt(cacheSize.trim());
+            } catch (NumberFormatException e) {
+                console.warning("Invalid responseCacheSize: " + cacheSize);
+            }
+        }
+        responseCache = new ResponseCache(capacity > 0 ? capacity : ResponseCache.DEFAULT_CAPACITY);
+        String cacheable = getParameter("cacheableCommands");
+        if (cacheable != null) {
+            for (String pattern : cacheable.split(";")) {
+                if (pattern.trim().length() > 0) {
+                    addCacheableCommand(pattern);
+                }
+            }
+        }
+        
+        if (Boolean.parseBoolean(getParameter("autoReconnect"))) {
+            setAutoReconnect(true, Boolean.parseBoolean(getParameter("replaySelect")));
+        }
+        
+        String transaction = getParameter("transactionTimeout");
+        if (transaction != null) {
+            try {
+                setTransactionTimeout(Long.parseLong(transaction.trim()));
+            } catch (NumberFormatException e) {
+                console.warning("Invalid transactionTimeout: " + transaction);
+            }
+        }
+        
+        String queueSize = getParameter("signalQueueSize");
+        if (queueSize != null) {
+            try {
+                signalDispatcher.setCapacity(Integer.parseInt(queueSize.trim()));
+            } catch (IllegalArgumentException e) {
+                console.warning("Invalid signalQueueSize: " + queueSize);
+            }
+        }
+        
+        String debounce = getParameter("signalDebounce");
+        if (debounce != null) {
+            try {
+                signalDispatcher.setDebounce(Long.parseLong(debounce.trim()));
+            } catch (IllegalArgumentException e) {
+                console.warning("Invalid signalDebounce: " + debounce);
+            }
+        }
+        
+        signalBatches = Boolean.parseBoolean(getParameter("signalBatches"));
+        
+        String warmUpSelect = getParameter("warmUpSelect");
+        if (Boolean.parseBoolean(getParameter("warmUp")) || warmUpSelect != null) {
+            if (!setWarmUp(true, warmUpSelect)) {
+                console.warning("Invalid warmUpSelect: " + warmUpSelect);
+            }
+        }
+        
+        // Extend the bundled reader profiles with those of the deployment
+        final String profiles = getParameter("readerProfiles");
+        if (profiles != null) {
+            try {
+                AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
+                    public Object run() throws IOException {
+                        ReaderProfiles.getDefault().load(
+                                new URL(getCodeBase(), profiles).openStream());
+                        return null;
+                    }
+                });
+            } catch(PrivilegedActionException e) {
+                console.warning("Failed to load reader profiles: " + 
+                        e.getException().getMessage());
+            }
+        }
+        
+        emit("appletInitialised");
     }
 
     public void start() {
         console.traceCall("start()");
         
-        emit(new Signal(this, "appletStarted"));
+        emit("appletStarted");
     }
 
     public boolean run() {
@@ -99,8 +260,9 @@ public class SmartCardJS extends Applet
         cardManager.addTerminalFactoryListener(this);
         cardManager.addCardTerminalListener(this);
         cardManager.startPolling();
+        presence.refresh(cardManager.getTerminals());
         
-        emit(new Signal(this, "appletRunning"));
+        emit("appletRunning");
         
         return true;
     }
@@ -110,14 +272,29 @@ public class SmartCardJS extends Applet
         
         cardManager.stopPolling();
         executorService.shutdown();
+        defaultSession = null;
+        sessions.disconnectAll();
+        
+        try {
+            AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
+                public Object run() throws IOException {
+                    capabilityCache.save();
+                    return null;
+                }
+            });
+        } catch(PrivilegedActionException e) {
+            console.warning("Failed to save reader capabilities: " + 
+                    e.getException().getMessage());
+        }
         
-        emit(new Signal(this, "appletStopped"));
+        emit("appletStopped");
     }
 
     public void destroy() {
         console.traceCall("destroy()");
         
-        emit(new Signal(this, "appletDestroyed"));    
+        emit("appletDestroyed");    
+        signalDispatcher.shutdown();
     }
     
     /*************************************************************************
@@ -131,19 +308,19 @@ public class SmartCardJS extends Applet
     }
     
     public void setOutputFilter(String filter) {
-        console.traceCall("setOutputFilter(" + filter + ")");
+        console.traceCall("setOutputFilter(%s)", filter);
         
         console.setOutputFilter(filter);
     }
     
     public void addOutputLevel(String level) {
-        console.traceCall("addOutputLevel(" + level + ")");
+        console.traceCall("addOutputLevel(%s)", level);
         
         console.addOutputLevel(level);
     }
     
     public void removeOutputLevel(String level) {
-        console.traceCall("removeOutputLevel(" + level + ")");
+        console.traceCall("removeOutputLevel(%s)", level);
         
         console.removeOutputLevel(level);
     }
@@ -153,7 +330,23 @@ public class SmartCardJS extends Applet
      *************************************************************************/
     
     public void enableSignals(String handler) {
+        enableSignals(handler, "*");
+    }
+    
+    /**
+     * Emit signals for the given events only to the JavaScript signal 
+     * handler, see SignalFilter for the syntax. Signals for events to which 
+     * no handler subscribed are not constructed at all.
+     * 
+     * @param handler name of the JavaScript signal handler
+     * @param events names or patterns of events, e.g. "cardInserted,pin-*"
+     */
+    public void enableSignals(String handler, String events) {
+        console.traceCall("enableSignals(%s, %s)", handler, events);
+        
         jsSignalHandler = handler;
+        jsSubscriptions.clear();
+        jsSubscriptions.subscribe(events);
         signalsEnabled = true;
     }
     
@@ -161,44 +354,172 @@ public class SmartCardJS extends Applet
         signalsEnabled = false;
     }
     
-    public void emit(final Signal signal) {
-        console.traceCall("emit(" + signal + ")");
+    /**
+     * Add events to those emitted to the JavaScript signal handler.
+     * 
+     * @param events names or patterns of events, see SignalFilter
+     */
+    public void subscribe(String events) {
+        console.traceCall("subscribe(%s)", events);
         
-        if (signalsEnabled) {
-            executorService.execute(new Runnable() {
-                public void run() { 
-                    jEmit(signal);
-                }
-            });
+        jsSubscriptions.subscribe(events);
+    }
+    
+    /**
+     * Remove events from those emitted to the JavaScript signal handler. 
+     * Names and patterns are removed as they were subscribed to.
+     * 
+     * @param events names or patterns of events, see SignalFilter
+     */
+    public void unsubscribe(String events) {
+        console.traceCall("unsubscribe(%s)", events);
         
-            executorService.execute(new Runnable() {
-                public void run() {
-                    jsEmit(signal);
-                }
-            });
+        jsSubscriptions.unsubscribe(events);
+    }
+    
+    /**
+     * @return the names and patterns of the events emitted to the 
+     *         JavaScript signal handler, separated by commas
+     */
+    public String getSubscriptions() {
+        return jsSubscriptions.toString();
+    }
+    
+    /**
+     * Register a Java signal handler for the given events. Registering a 
+     * handler again replaces its subscriptions.
+     * 
+     * @param handler the signal handler
+     * @param events names or patterns of events, see SignalFilter
+     */
+    public void addSignalHandler(SignalHandler handler, String events) {
+        jSignalHandlers.put(handler, new SignalFilter(events));
+    }
+    
+    public void removeSignalHandler(SignalHandler handler) {
+        jSignalHandlers.remove(handler);
+    }
+    
+    /**
+     * Check whether any handler subscribed to an event, so signals for it 
+     * need to be emitted. The console subscribes to all events when it logs 
+     * at the LOG level.
+     * 
+     * @param event the name of the event
+     * @return whether a signal for the event would be handled
+     */
+    public boolean isSubscribed(String event) {
+        if (!signalsEnabled) {
+            return false;
+        }
+        if (jsSubscriptions.accepts(event) || console.isEnabled(Console.Level.LOG)) {
+            return true;
+        }
+        for (SignalFilter filter : jSignalHandlers.values()) {
+            if (filter.accepts(event)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Emit a signal for an event, if any handler subscribed to it. 
+     * 
+     * @param event the name of the event
+     * @param attributes the additional data to go with the signal
+     */
+    public void emit(String event, Object... attributes) {
+        if (isSubscribed(event)) {
+            emit(new Signal(this, event, attributes));
         }
     }
     
+    public void emit(final Signal signal) {
+        console.traceCall("emit(%s)", signal);
+        
+        if (isSubscribed(signal.getEvent())) {
+            signalDispatcher.enqueue(signal);
+        }
+    }
+    
+    /**
+     * Get the state of the signal queue: the number of pending signals, of 
+     * signals coalesced with later reader and card events and of reader 
+     * and card events dropped because the queue was full.
+     * @return the state as a JSON object, see SignalDispatcher
+     */
+    public String getSignalStatistics() {
+        console.traceCall("getSignalStatistics()");
+        
+        return signalDispatcher.toJSON();
+    }
+    
     public void jEmit(Signal signal) {
-        console.traceCall("jEmit(" + signal + ")");
+        console.traceCall("jEmit(%s)", signal);
         
-        try {
-            jSignalHandler.handle(signal);
-        } catch (Exception e) {
-            console.warning("Failed to emit " + signal + 
-                    " due to an Exception: " + e.getMessage());
+        console.handle(signal);
+        for (Map.Entry<SignalHandler, SignalFilter> entry : jSignalHandlers.entrySet()) {
+            if (entry.getValue().accepts(signal.getEvent())) {
+                try {
+                    entry.getKey().handle(signal);
+                } catch (Exception e) {
+                    console.warning("Failed to emit " + signal + 
+                            " due to an Exception: " + e.getMessage());
+                }
+            }
         }
     }
     
     public void jsEmit(Signal signal) {
-        console.traceCall("jsEmit(" + signal + ")");
+        jsEmit(new Signal[]{signal});
+    }
+    
+    /**
+     * Let the dispatch function of the JavaScript signal handler take all 
+     * pending signals in one call, as separate arguments in emission order, 
+     * instead of being called once per signal. 
+     * 
+     * @param enabled whether signals are dispatched in batches
+     */
+    public void enableSignalBatches(boolean enabled) {
+        console.traceCall("enableSignalBatches(%s)", enabled);
+        
+        signalBatches = enabled;
+    }
+    
+    /**
+     * Emit signals to the JavaScript signal handler. Its dispatch function is
+     * called with the JSON text of a signal, so the page does not have to 
+     * call back into the applet to read it; see Signal.toJSON for the 
+     * members. The function is called once per signal, in emission order, 
+     * or once for all of them if batches are enabled.
+     * 
+     * @param signals the signals to be emitted.
+     */
+    public void jsEmit(Signal[] signals) {
+        console.traceCall("jsEmit(%s signals)", signals.length);
+        
+        String[] payloads = new String[signals.length];
+        for (int i = 0; i < signals.length; i++) {
+            payloads[i] = signals[i].toJSON();
+        }
         
         try {
-            ((JSObject) js.getMember(jsSignalHandler)).call(
-                    "dispatch", new Object[]{signal});
+            JSObject handler = (JSObject) js.getMember(jsSignalHandler);
+            if (signalBatches) {
+                handler.call("dispatch", payloads);
+            } else {
+                for (String payload : payloads) {
+                    handler.call("dispatch", new Object[]{payload});
+                }
+            }
         } catch (JSException e) {
-            console.warning("Failed to emit " + signal + 
-                    " due to a JSException: " + e.getMessage());
+            console.warning("Failed to emit " + signals.length + 
+                    " signals due to a JSException: " + e.getMessage());
+        } catch (RuntimeException e) {
+            console.warning("Failed to emit " + signals.length + 
+                    " signals due to an Exception: " + e);
         }
     }
     
@@ -212,9 +533,11 @@ public class SmartCardJS extends Applet
      * @param event generated by the card manager
      */
     public void cardTerminalAdded(CardTerminalEvent event) {
-        console.traceCall("cardTerminalAdded(" + event + ")");
+        console.traceCall("cardTerminalAdded(%s)", event);
+        
+        presence.readerAdded(event.getTerminal().getName());
         
-        emit(new Signal(this, "terminalAdded", new Object[]{event.getTerminal()}));
+        emit("terminalAdded", event.getTerminal());
     }
 
     /**
@@ -223,9 +546,11 @@ public class SmartCardJS extends Applet
      * @param event generated by the card manager
      */
     public void cardTerminalRemoved(CardTerminalEvent event) {
-        console.traceCall("cardTerminalRemoved(" + event + ")");
+        console.traceCall("cardTerminalRemoved(%s)", event);
         
-        emit(new Signal(this, "terminalRemoved", new Object[]{event.getTerminal()}));
+        presence.readerRemoved(event.getTerminal().getName());
+        
+        emit("terminalRemoved", event.getTerminal());
     }
     
     /**
@@ -234,9 +559,17 @@ public class SmartCardJS extends Applet
      * @param event generated by the card manager
      */
     public void cardInserted(CardEvent event) {
-        console.traceCall("cardInserted(" + event + ")");
+        console.traceCall("cardInserted(%s)", event);
+        
+        String reader = getReaderName(event);
+        if (reader != null) {
+            presence.cardInserted(reader);
+            if (warmUp) {
+                warmUp(((TerminalCardService) event.getService()).getTerminal());
+            }
+        }
         
-        emit(new Signal(this, "cardInserted", new Object[]{event.getService()}));
+        emit("cardInserted", event.getService());
     }
 
     /**
@@ -245,9 +578,67 @@ public class SmartCardJS extends Applet
      * @param event generated by the card manager
      */
     public void cardRemoved(CardEvent event) {
-        console.traceCall("cardRemoved(" + event + ")");
+        console.traceCall("cardRemoved(%s)", event);
+        
+        String reader = getReaderName(event);
+        if (reader != null) {
+            presence.cardRemoved(reader);
+            responseCache.invalidate(reader);
+            
+            CardSession session = defaultSession;
+            if (session != null && session.getReader().equals(reader)) {
+                defaultSession = null;
+            }
+            sessions.disconnect(reader);
+        }
+        
+        emit("cardRemoved", event.getService());
+    }
 
-        emit(new Signal(this, "cardRemoved", new Object[]{event.getService()}));
+    /**
+     * Open a session with a newly inserted card in the background, so the 
+     * first request of the page finds it ready. A sessionReady signal 
+     * carrying the reader name and the session handle, and the ATR read 
+     * while warming up, is emitted when done.
+     *
+     * @param terminal the reader in which the card was inserted
+     */
+    private void warmUp(final CardTerminal terminal) {
+        final byte[] select = warmUpSelect;
+        executorService.execute(new Runnable() {
+            public void run() {
+                AccessController.doPrivileged(new PrivilegedAction<Object>() {
+                    public Object run() {
+                        try {
+                            CardSession session = sessions.warmUp(terminal, 
+                                    new PinListener(SmartCardJS.this), select);
+                            if (isSubscribed("sessionReady")) {
+                                emit(new Signal(SmartCardJS.this, "sessionReady", 
+                                        new Object[]{terminal.getName(), session.getHandle()},
+                                        terminal.getName(), session.getService().getKnownATR()));
+                            }
+                        } catch (CardServiceException e) {
+                            console.warning("Failed to warm up session with " + 
+                                    terminal.getName() + ": " + e.getMessage());
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Get the name of the reader in which the card of an event resides.
+     * 
+     * @param event generated by the card manager
+     * @return the name of the reader, or null if it cannot be determined
+     */
+    private static String getReaderName(CardEvent event) {
+        if (event.getService() instanceof TerminalCardService) {
+            return ((TerminalCardService) event.getService()).getTerminal().getName();
+        }
+        return null;
     }
 
     /**
@@ -258,18 +649,8 @@ public class SmartCardJS extends Applet
     public String getReaderList() {
         console.traceCall("getReaderList()");
         
-        List<CardTerminal> readers = cardManager.getTerminals();
-        
-        // Turn this list of readers into a String
-        if (readers.isEmpty()) {
-            return "bananen";
-        } else {
-            String list = "";
-            for (CardTerminal reader : readers) {
-                list += "\n" + reader.getName();
-            }
-            return list.substring(1);
-        }
+        String list = presence.getReaderList();
+        return list.length() == 0 ? "bananen" : list;
     }
 
     /**
@@ -287,58 +668,185 @@ public class SmartCardJS extends Applet
     public String getCardList() {
         console.traceCall("getCardList()");
         
-        List<CardTerminal> readers = cardManager.getTerminals();        
-        List<CardTerminal> cards = new Vector<CardTerminal>();
+        return presence.getCardList();
+    }
+    
+    /**
+     * Get the changes to the lists of readers and cards since a given 
+     * version, so polling pages only have to process what changed.
+     * 
+     * @param version the version last returned, or -1 to get the full state
+     * @return an empty string if nothing changed, otherwise the current 
+     *         version followed by the changes, see ReaderPresence
+     */
+    public String getReaderStateSince(long version) {
+        console.traceCall("getReaderStateSince(%s)", version);
+        
+        return presence.getStateSince(version);
+    }
+    
+    /**
+     * Query all readers for the presence of a card, to resynchronise the 
+     * lists of readers and cards with the actual state.
+     */
+    public void refreshPresence() {
+        console.traceCall("refreshPresence()");
         
-        // Filter out readers with no cards
-        for (CardTerminal reader : readers) {
-            try {
-                if (reader.isCardPresent()) {
-                    cards.add(reader);
+        try {
+            AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
+                public Object run() {
+                    presence.refresh(cardManager.getTerminals());
+                    return null;
                 }
-            } catch (CardException e) {
-                e.printStackTrace();
-            }
-        }
-
-        // Turn this list of readers into a String
-        if (cards.isEmpty()) {
-            return "";
-        } else {
-            String list = "";
-            for (CardTerminal reader : cards) {
-                list += "\n" + reader.getName();
-            }
-            return list.substring(1);
+            });
+        } catch(PrivilegedActionException e) {
+            e.printStackTrace();
         }
     }
     
-    private CardHolderVerificationService cardService = null;
+    /**
+     * Cache of reader capabilities, persisted between runs of the applet.
+     */
+    private CapabilityCache capabilityCache = null;
+    
+    /**
+     * Latencies and byte counts of the APDUs transmitted by the sessions.
+     */
+    private final APDUMetrics metrics = new APDUMetrics();
+    
+    /**
+     * Sessions with the cards in the available readers.
+     */
+    private SessionRegistry sessions = null;
+    
+    /**
+     * Cache of responses to the commands marked as cacheable.
+     */
+    private ResponseCache responseCache = null;
+    
+    /**
+     * Time in milliseconds after which an idle transaction is ended.
+     */
+    private volatile long transactionTimeout = CardSession.DEFAULT_TRANSACTION_TIMEOUT;
+    
+    /**
+     * Whether sessions are opened as soon as a card is inserted.
+     */
+    private volatile boolean warmUp = false;
+    
+    /**
+     * Encoded SELECT command sent when warming up a session, or null.
+     */
+    private volatile byte[] warmUpSelect = null;
+    
+    /**
+     * Session used by the calls which do not take a session handle.
+     */
+    private volatile CardSession defaultSession = null;
+    
     private String lastErrorMessage = "";
     
     public CardHolderVerificationService getCardService() {
-    	return cardService;
+        CardSession session = defaultSession;
+    	return session == null ? null : session.getService();
     }
     
     public boolean ConnectCard(String readerName) {
-    	List<CardTerminal> readers = cardManager.getTerminals();
-        for (CardTerminal reader : readers) {
-            try {
-                if (reader.isCardPresent() && reader.getName().equals(readerName)) {
-					cardService = new CardHolderVerificationService(
-							new TerminalCardService(reader));
-					cardService.addPinVerificationListener(new PinListener(this));
-                    try {
-                        cardService.open();
-					} catch (CardServiceException e) {
-						lastErrorMessage = "Cannot connect to the card";
-						return false;
-					}
+        int handle = connect(readerName);
+        if (handle < 0) {
+            return false;
+        }
+        defaultSession = sessions.get(handle);
+        return true;
+    }
+    
+    /**
+     * Connect to the card in a reader. When a session with this reader is
+     * already open, its handle is returned.
+     * @param readerName name of the reader holding the card
+     * @return handle of the session with the card, or -1 on failure
+     */
+    public int connect(String readerName) {
+        console.traceCall("connect(%s)", readerName);
+        
+        final String name = readerName;
+        try {
+            return AccessController.doPrivileged(new PrivilegedExceptionAction<Integer>() {
+                public Integer run() {
+                    for (CardTerminal reader : cardManager.getTerminals()) {
+                        try {
+                            if (reader.getName().equals(name) && reader.isCardPresent()) {
+                                return sessions.connect(reader, new PinListener(SmartCardJS.this)).getHandle();
+                            }
+                        } catch (CardException e) {
+                            e.printStackTrace();
+                        } catch (CardServiceException e) {
+                            lastErrorMessage = "Cannot connect to the card";
+                            return -1;
+                        }
+                    }
+                    lastErrorMessage = "No card found.";
+                    return -1;
                 }
-            } catch (CardException e) {
-                e.printStackTrace();
-            }
+            });
+        } catch(PrivilegedActionException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+    
+    /**
+     * Close a session with a card.
+     * @param handle handle of the session
+     * @return whether the session was open
+     */
+    public boolean disconnect(int handle) {
+        console.traceCall("disconnect(%s)", handle);
+        
+        CardSession session = defaultSession;
+        if (session != null && session.getHandle() == handle) {
+            defaultSession = null;
         }
+        return sessions.disconnect(handle);
+    }
+
+    /**
+     * Enable or disable automatic response chaining for the connected card.
+     * When enabled, 61xx and 6Cxx responses are resolved within the applet
+     * and returned as a single response.
+     * @param enabled whether response chaining should be performed
+     * @param maxLength maximum number of data bytes in a chained response
+     * @return whether a card is connected to apply the setting to and 
+     *         maxLength is positive
+     */
+    public boolean setResponseChaining(boolean enabled, int maxLength) {
+        console.traceCall("setResponseChaining(%s, %s)", enabled, maxLength);
+        
+        return setResponseChaining(defaultSession, enabled, maxLength);
+    }
+
+    /**
+     * Enable or disable automatic response chaining for a session.
+     * @param handle handle of the session
+     * @param enabled whether response chaining should be performed
+     * @param maxLength maximum number of data bytes in a chained response
+     * @return whether the session is open to apply the setting to and 
+     *         maxLength is positive
+     */
+    public boolean setResponseChaining(int handle, boolean enabled, int maxLength) {
+        return setResponseChaining(sessions.get(handle), enabled, maxLength);
+    }
+    
+    private boolean setResponseChaining(CardSession session, boolean enabled, int maxLength) {
+        if (session == null) {
+            lastErrorMessage = "No card connected.";
+            return false;
+        }
+        if (maxLength <= 0) {
+            lastErrorMessage = "Invalid maximum response length: " + maxLength;
+            return false;
+        }
+        session.getService().setResponseChaining(enabled, maxLength);
         return true;
     }
 
@@ -371,44 +879,606 @@ public class SmartCardJS extends Applet
      * @return response of the card represented by a hex-encoded byte-array
      */
     public String transmitString(String strAPDU) {
-    	final String ApduCmd = strAPDU;
+        return transmitString(defaultSession, strAPDU);
+    }
+    
+    /**
+     * Transmit APDU commands to the card of a session
+     * @param handle handle of the session
+     * @param strAPDU APDU command represented by a hex-encoded byte-array
+     * @return response of the card represented by a hex-encoded byte-array
+     */
+    public String transmit(int handle, String strAPDU) {
+        return transmitString(sessions.get(handle), strAPDU);
+    }
+    
+    private String transmitString(final CardSession session, final String strAPDU) {
+        if (session == null) {
+            return "Exception No card connected.";
+        }
+        
         try {
-            return AccessController.doPrivileged(new PrivilegedExceptionAction<String>() {
+            return session.execute(new PrivilegedExceptionAction<String>() {
                 public String run() {
-                    CommandAPDU getData = new CommandAPDU(Hex.hexStringToBytes(ApduCmd));
+                    return transmitOnSession(session, strAPDU);
+                }
+            });
+        } catch(PrivilegedActionException e) {
+            e.printStackTrace();
+        } catch(RejectedExecutionException e) {
+            // The session was closed in the meantime
+            return "Exception No card connected.";
+        }
+        return "";
+    }
+    
+    /**
+     * Transmit an APDU command on the thread of a session, see 
+     * transmitString().
+     */
+    private String transmitOnSession(CardSession session, String strAPDU) {
+        CommandAPDU getData;
+        try {
+            getData = parseCommand(strAPDU);
+        } catch(IllegalArgumentException e) {
+            return (new StringBuilder("Exception ")).append(e.getMessage()).toString();
+        }
+        
+        try {
+            ResponseAPDU resp = session.getService().transmit(getData);
+            String response = HexCodec.encode(resp.getBytes());
+            console.traceAPDU("C: %s\nR: %s", strAPDU, response);
+            return response;
+        } catch(CardServiceException e) {
+            e.printStackTrace();
+            return (new StringBuilder("Exception ")).append(e.getMessage()).toString();
+        }
+    }
+    
+    /**
+     * Transmit an APDU command to the card
+     * @param command APDU command
+     * @return the response data, status word and error code of the exchange
+     */
+    public TransmitResult transmitBytes(byte[] command) {
+        return transmitBytes(defaultSession, command);
+    }
+    
+    /**
+     * Transmit an APDU command to the card of a session
+     * @param handle handle of the session
+     * @param command APDU command
+     * @return the response data, status word and error code of the exchange
+     */
+    public TransmitResult transmitBytes(int handle, byte[] command) {
+        return transmitBytes(sessions.get(handle), command);
+    }
+    
+    /**
+     * Transmit an APDU command to the card. The result is returned as a 
+     * string, so the page needs no further calls into the applet to read it.
+     * @param command APDU command represented by a base64-encoded byte-array
+     * @return the response data, status word and error code of the exchange
+     *         as a JSON object, see TransmitResult.toJSON()
+     */
+    public String transmitBase64(String command) {
+        return transmitBase64(defaultSession, command).toJSON();
+    }
+    
+    /**
+     * Transmit an APDU command to the card of a session, see 
+     * transmitBase64(String).
+     * @param handle handle of the session
+     * @param command APDU command represented by a base64-encoded byte-array
+     * @return the response data, status word and error code of the exchange
+     *         as a JSON object, see TransmitResult.toJSON()
+     */
+    public String transmitBase64(int handle, String command) {
+        return transmitBase64(sessions.get(handle), command).toJSON();
+    }
+    
+    private TransmitResult transmitBase64(CardSession session, String command) {
+        if (command == null) {
+            return TransmitResult.failure(TransmitResult.ERROR_INVALID_COMMAND, "No command given.");
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64Codec.decode(command);
+        } catch(IllegalArgumentException e) {
+            return TransmitResult.failure(TransmitResult.ERROR_INVALID_COMMAND, e.getMessage());
+        }
+        return transmitBytes(session, bytes);
+    }
+    
+    private TransmitResult transmitBytes(final CardSession session, final byte[] command) {
+        if (session == null) {
+            return TransmitResult.failure(TransmitResult.ERROR_NO_CARD, "No card connected.");
+        }
+        if (command == null) {
+            return TransmitResult.failure(TransmitResult.ERROR_INVALID_COMMAND, "No command given.");
+        }
+        
+        try {
+            return session.execute(new PrivilegedExceptionAction<TransmitResult>() {
+                public TransmitResult run() {
+                    CommandAPDU capdu;
+                    try {
+                        capdu = new CommandAPDU(command);
+                    } catch(IllegalArgumentException e) {
+                        return TransmitResult.failure(TransmitResult.ERROR_INVALID_COMMAND, e.getMessage());
+                    }
                     
                     try {
-                        ResponseAPDU resp = cardService.transmit(getData);
-                        return Hex.bytesToHexString(resp.getBytes());
+                        byte[] response = session.getService().transmit(capdu).getBytes();
+                        if (console.isEnabled(Console.Level.TRACE_APDU)) {
+                            console.traceAPDU("C: %s\nR: %s", 
+                                    HexCodec.encode(command), HexCodec.encode(response));
+                        }
+                        return TransmitResult.success(response);
                     } catch(CardServiceException e) {
-                        e.printStackTrace();
-                        return (new StringBuilder("Exception ")).append(e.getMessage()).toString();
+                        return TransmitResult.failure(TransmitResult.ERROR_TRANSMIT, e.getMessage());
                     }
                 }
             });
+        } catch(PrivilegedActionException e) {
+            return TransmitResult.failure(TransmitResult.ERROR_TRANSMIT, 
+                    e.getException().toString());
+        } catch(RejectedExecutionException e) {
+            // The session was closed in the meantime
+            return TransmitResult.failure(TransmitResult.ERROR_NO_CARD, "No card connected.");
+        }
+    }
+    
+    /**
+     * Transmit a sequence of APDU commands to the card in a single call
+     * @param strAPDUs APDU commands, each represented by a hex-encoded byte-array
+     * @param stopOnError whether to stop at the first response with a status
+     *        word other than 9000
+     * @return responses of the card, each represented by a hex-encoded 
+     *         byte-array, in the order of the commands
+     */
+    public String[] transmitBatch(String[] strAPDUs, boolean stopOnError) {
+        return transmitBatch(defaultSession, strAPDUs, stopOnError);
+    }
+    
+    /**
+     * Transmit a sequence of APDU commands to the card of a session in a 
+     * single call
+     * @param handle handle of the session
+     * @param strAPDUs APDU commands, each represented by a hex-encoded byte-array
+     * @param stopOnError whether to stop at the first response with a status
+     *        word other than 9000
+     * @return responses of the card, each represented by a hex-encoded 
+     *         byte-array, in the order of the commands
+     */
+    public String[] transmitBatch(int handle, String[] strAPDUs, boolean stopOnError) {
+        return transmitBatch(sessions.get(handle), strAPDUs, stopOnError);
+    }
+    
+    private String[] transmitBatch(final CardSession session, String[] strAPDUs, boolean stopOnError) {
+        if (session == null) {
+            return new String[]{"Exception No card connected."};
+        }
+        
+        final String[] ApduCmds = strAPDUs;
+        final boolean stop = stopOnError;
+        try {
+            return session.execute(new PrivilegedExceptionAction<String[]>() {
+                public String[] run() {
+                    String[] responses = new String[ApduCmds.length];
+                    int count = 0;
+                    
+                    while (count < ApduCmds.length) {
+                        CommandAPDU command;
+                        try {
+                            command = parseCommand(ApduCmds[count]);
+                        } catch(IllegalArgumentException e) {
+                            responses[count++] = (new StringBuilder("Exception ")).append(e.getMessage()).toString();
+                            break;
+                        }
+                        
+                        try {
+                            ResponseAPDU resp = session.getService().transmit(command);
+                            responses[count++] = HexCodec.encode(resp.getBytes());
+                            if (stop && resp.getSW() != 0x9000) {
+                                break;
+                            }
+                        } catch(CardServiceException e) {
+                            e.printStackTrace();
+                            responses[count++] = (new StringBuilder("Exception ")).append(e.getMessage()).toString();
+                            break;
+                        }
+                    }
+                    
+                    return count == responses.length ? responses : Arrays.copyOf(responses, count);
+                }
+            });
         } catch(PrivilegedActionException e) {
             e.printStackTrace();
+        } catch(RejectedExecutionException e) {
+            // The session was closed in the meantime
+            return new String[]{"Exception No card connected."};
         }
-        return "";
+        return new String[0];
+    }
+    
+    /**
+     * Parse an APDU command represented by a hex-encoded byte-array.
+     * @param strAPDU APDU command represented by a hex-encoded byte-array
+     * @return the APDU command
+     * @exception IllegalArgumentException if strAPDU is not strictly hex-encoded
+     */
+    private static CommandAPDU parseCommand(String strAPDU) {
+        byte[] buffer = HexCodec.buffer(strAPDU);
+        int length = HexCodec.decode(strAPDU, buffer, true);
+        return new CommandAPDU(buffer, 0, length);
     }
     
     public int verifyPin() {
+        return verifyPin(defaultSession);
+    }
+    
+    /**
+     * Verify the PIN of the card of a session
+     * @param handle handle of the session
+     * @return the outcome of the verification, see verifyPin()
+     */
+    public int verifyPin(int handle) {
+        return verifyPin(sessions.get(handle));
+    }
+    
+    private int verifyPin(final CardSession session) {
+        if (session == null) {
+            return -17;
+        }
+        
         try {
-            return AccessController.doPrivileged(new PrivilegedExceptionAction<Integer>() {
+            return session.execute(new PrivilegedExceptionAction<Integer>() {
                 public Integer run() {
-                    try {
-                    	int nr_tries_left = cardService.verifyPIN();
-                        return nr_tries_left;
-                    } catch(Exception e) {
-                        e.printStackTrace();
-                        return -17;
-                    }
+                    return verifyPinOnSession(session);
                 }
             });
         } catch(PrivilegedActionException e) {
             e.printStackTrace();
+        } catch(RejectedExecutionException e) {
+            // The session was closed in the meantime
+            return -17;
         }
         
         return -19;
     }
+    
+    /**
+     * Verify the PIN on the thread of a session, see verifyPin().
+     */
+    private int verifyPinOnSession(CardSession session) {
+        try {
+        	int nr_tries_left = session.getService().verifyPIN();
+            return nr_tries_left;
+        } catch(Exception e) {
+            e.printStackTrace();
+            return -17;
+        }
+    }
+    
+    /**
+     * Get the latencies, per CLA, INS and SW1, and byte counts of the APDUs
+     * transmitted since the applet started or the metrics were reset.
+     * @return the metrics as a JSON object, see APDUMetrics
+     */
+    public String getMetrics() {
+        console.traceCall("getMetrics()");
+        
+        return metrics.toJSON();
+    }
+    
+    /**
+     * Discard the metrics recorded so far.
+     */
+    public void resetMetrics() {
+        console.traceCall("resetMetrics()");
+        
+        metrics.reset();
+    }
+    
+    /**
+     * Enable or disable reconnecting transparently when a card turns out to
+     * have been reset, in which case the failed command is sent again. The
+     * number of reconnects is reported by getMetrics().
+     * @param enabled whether to reconnect after a reset
+     * @param replaySelect whether to send the last successful SELECT again 
+     *        after reconnecting, to restore the selected application
+     */
+    public void setAutoReconnect(boolean enabled, boolean replaySelect) {
+        console.traceCall("setAutoReconnect(%s, %s)", enabled, replaySelect);
+        
+        sessions.setAutoReconnect(enabled, replaySelect);
+    }
+    
+    /**
+     * Get exclusive access to the connected card for a sequence of commands,
+     * so other applications cannot interleave commands with those of the 
+     * page. The access is released by endTransaction(), or by a watchdog 
+     * when no command was sent for the transaction timeout.
+     * @return whether exclusive access was obtained
+     */
+    public boolean beginTransaction() {
+        return beginTransaction(defaultSession);
+    }
+    
+    /**
+     * Get exclusive access to the card of a session, see beginTransaction().
+     * @param handle handle of the session
+     * @return whether exclusive access was obtained
+     */
+    public boolean beginTransaction(int handle) {
+        return beginTransaction(sessions.get(handle));
+    }
+    
+    private boolean beginTransaction(CardSession session) {
+        console.traceCall("beginTransaction(%s)", session == null ? null : session.getHandle());
+        
+        if (session == null) {
+            lastErrorMessage = "No card connected.";
+            return false;
+        }
+        try {
+            session.beginTransaction(transactionTimeout);
+            return true;
+        } catch (PrivilegedActionException e) {
+            lastErrorMessage = e.getException().getMessage();
+            return false;
+        } catch (RejectedExecutionException e) {
+            // The session was closed in the meantime
+            lastErrorMessage = "No card connected.";
+            return false;
+        }
+    }
+    
+    /**
+     * Release the exclusive access to the connected card.
+     * @return whether a transaction was in progress
+     */
+    public boolean endTransaction() {
+        return endTransaction(defaultSession);
+    }
+    
+    /**
+     * Release the exclusive access to the card of a session.
+     * @param handle handle of the session
+     * @return whether a transaction was in progress
+     */
+    public boolean endTransaction(int handle) {
+        return endTransaction(sessions.get(handle));
+    }
+    
+    private boolean endTransaction(CardSession session) {
+        console.traceCall("endTransaction(%s)", session == null ? null : session.getHandle());
+        
+        return session != null && session.endTransaction();
+    }
+    
+    /**
+     * Set the time after which a transaction in which no command was sent
+     * is ended, in case the page went away without ending it.
+     * @param timeout the time in milliseconds
+     */
+    public void setTransactionTimeout(long timeout) {
+        console.traceCall("setTransactionTimeout(%s)", timeout);
+        
+        if (timeout > 0) {
+            transactionTimeout = timeout;
+        }
+    }
+    
+    /**
+     * Enable or disable the warm-up of sessions. When enabled, a session is
+     * opened as soon as a card is inserted, the ATR is read and the given
+     * SELECT command is sent, so a later connect returns immediately.
+     * @param enabled whether sessions should be warmed up
+     * @param select SELECT command represented by a hex-encoded byte-array,
+     *        or null or empty to not select an application
+     * @return whether the command is valid
+     */
+    public boolean setWarmUp(boolean enabled, String select) {
+        console.traceCall("setWarmUp(%s, %s)", enabled, select);
+        
+        byte[] command = null;
+        if (select != null && select.trim().length() > 0) {
+            try {
+                command = HexCodec.decode(select.trim(), true);
+            } catch (IllegalArgumentException e) {
+                lastErrorMessage = e.getMessage();
+                return false;
+            }
+        }
+        warmUpSelect = command;
+        warmUp = enabled;
+        return true;
+    }
+    
+    /**
+     * Mark the commands matching a pattern as cacheable, enabling the 
+     * response cache. Their responses are then served from the cache until
+     * the card is removed, another application is selected or a command 
+     * which changes the state of the card is sent, see ResponseCache.
+     * @param pattern hex-encoded command bytes, where ".." matches any byte
+     *        and a trailing "*" any remainder, e.g. "00A40400 *"
+     * @return whether the pattern is valid
+     */
+    public boolean addCacheableCommand(String pattern) {
+        console.traceCall("addCacheableCommand(%s)", pattern);
+        
+        try {
+            responseCache.addCacheable(pattern);
+        } catch (IllegalArgumentException e) {
+            lastErrorMessage = e.getMessage();
+            return false;
+        }
+        sessions.setResponseCache(responseCache);
+        return true;
+    }
+    
+    /**
+     * Discard all cached responses.
+     */
+    public void clearResponseCache() {
+        console.traceCall("clearResponseCache()");
+        
+        responseCache.clear();
+    }
+    
+    /**
+     * Set the time the user gets to enter the PIN on a PIN-pad, after which
+     * the PIN entry is aborted.
+     * @param timeout the time in milliseconds
+     */
+    public void setPinPadTimeout(long timeout) {
+        console.traceCall("setPinPadTimeout(%s)", timeout);
+        
+        sessions.setPinPadTimeout(timeout);
+    }
+    
+    /**
+     * Cancel the PIN entry on the PIN-pad for the connected card. The 
+     * pending verifyPin() call then reports a failure.
+     * @return whether a PIN entry was in progress
+     */
+    public boolean cancelPinEntry() {
+        return cancelPinEntry(defaultSession);
+    }
+    
+    /**
+     * Cancel the PIN entry on the PIN-pad for the card of a session.
+     * @param handle handle of the session
+     * @return whether a PIN entry was in progress
+     */
+    public boolean cancelPinEntry(int handle) {
+        return cancelPinEntry(sessions.get(handle));
+    }
+    
+    private boolean cancelPinEntry(final CardSession session) {
+        if (session == null) {
+            return false;
+        }
+        
+        // Not executed by the session, as its thread awaits the PIN entry
+        return AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
+            public Boolean run() {
+                return session.getService().cancelPinEntry();
+            }
+        });
+    }
+    
+    /*************************************************************************
+     *** Asynchronous SmartCardIO interaction                              ***
+     *************************************************************************/
+    
+    /**
+     * Check whether the signal reporting the outcome of an asynchronous 
+     * request would be handled, as the outcome would be lost otherwise.
+     */
+    private boolean canReport(String event) {
+        if (isSubscribed(event)) {
+            return true;
+        }
+        lastErrorMessage = "Signals for " + event + " are not enabled.";
+        return false;
+    }
+    
+    /**
+     * Connect to the first card found on the card readers without blocking
+     * the caller. The outcome is reported by a cardConnected signal which 
+     * carries the request identifier and the result of connectFirstCard().
+     * There is no session to serialise the request on yet; connecting to a
+     * reader is serialised by the session registry.
+     * 
+     * @return identifier of the request, or -1 if the cardConnected signal
+     *         is not enabled
+     */
+    public int connectFirstCardAsync() {
+        console.traceCall("connectFirstCardAsync()");
+        
+        if (!canReport("cardConnected")) {
+            return -1;
+        }
+        final int id = requestCounter.incrementAndGet();
+        executorService.execute(new Runnable() {
+            public void run() {
+                boolean connected = connectFirstCard();
+                emit("cardConnected", id, connected);
+            }
+        });
+        return id;
+    }
+    
+    /**
+     * Transmit an APDU command to the card without blocking the caller. The
+     * response is reported by a transmitCompleted signal which carries the
+     * request identifier and the result of transmitString(). The command is
+     * queued to the session of the card right away, so asynchronous 
+     * requests reach the card in the order in which they were made.
+     * 
+     * @param strAPDU APDU command represented by a hex-encoded byte-array
+     * @return identifier of the request, or -1 if the transmitCompleted 
+     *         signal is not enabled
+     */
+    public int transmitStringAsync(final String strAPDU) {
+        console.traceCall("transmitStringAsync(%s)", strAPDU);
+        
+        if (!canReport("transmitCompleted")) {
+            return -1;
+        }
+        final int id = requestCounter.incrementAndGet();
+        final CardSession session = defaultSession;
+        try {
+            if (session != null) {
+                session.submit(new PrivilegedAction<Object>() {
+                    public Object run() {
+                        emit("transmitCompleted", id, transmitOnSession(session, strAPDU));
+                        return null;
+                    }
+                });
+                return id;
+            }
+        } catch (RejectedExecutionException e) {
+            // The session was closed in the meantime
+        }
+        emit("transmitCompleted", id, "Exception No card connected.");
+        return id;
+    }
+    
+    /**
+     * Verify the PIN without blocking the caller. The outcome is reported by 
+     * a pinVerified signal which carries the request identifier and the 
+     * result of verifyPin(). Like transmitStringAsync(), the verification 
+     * is queued to the session of the card right away.
+     * 
+     * @return identifier of the request, or -1 if the pinVerified signal is
+     *         not enabled
+     */
+    public int verifyPinAsync() {
+        console.traceCall("verifyPinAsync()");
+        
+        if (!canReport("pinVerified")) {
+            return -1;
+        }
+        final int id = requestCounter.incrementAndGet();
+        final CardSession session = defaultSession;
+        try {
+            if (session != null) {
+                session.submit(new PrivilegedAction<Object>() {
+                    public Object run() {
+                        emit("pinVerified", id, verifyPinOnSession(session));
+                        return null;
+                    }
+                });
+                return id;
+            }
+        } catch (RejectedExecutionException e) {
+            // The session was closed in the meantime
+        }
+        emit("pinVerified", id, -17);
+        return id;
+    }
 }
@@ -0,0 +1,145 @@
+package org.irmacard.scjs;
+
+/**
+ * Outcome of transmitting an APDU command, with the response data, the
+ * status word and an error code as separate fields, so callers do not have
+ * to parse strings.
+ */
+public class TransmitResult {
+
+    /**
+     * The command was transmitted and the card responded.
+     */
+    public static final int ERROR_NONE = 0;
+
+    /**
+     * There is no session with a card to transmit to.
+     */
+    public static final int ERROR_NO_CARD = 1;
+
+    /**
+     * The command could not be decoded or is not a valid APDU.
+     */
+    public static final int ERROR_INVALID_COMMAND = 2;
+
+    /**
+     * The card service failed to transmit the command.
+     */
+    public static final int ERROR_TRANSMIT = 3;
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final int errorCode;
+    private final String errorMessage;
+    private final byte[] data;
+    private final int sw;
+
+    private TransmitResult(int errorCode, String errorMessage, byte[] data, int sw) {
+        this.errorCode = errorCode;
+        this.errorMessage = errorMessage;
+        this.data = data;
+        this.sw = sw;
+    }
+
+    /**
+     * Construct the result of a command to which the card responded.
+     *
+     * @param response the response of the card, including the status word.
+     * @return the result.
+     */
+    public static TransmitResult success(byte[] response) {
+        int length = response.length - 2;
+        byte[] data = new byte[length];
+        System.arraycopy(response, 0, data, 0, length);
+        int sw = (response[length] & 0xFF) << 8 | (response[length + 1] & 0xFF);
+        return new TransmitResult(ERROR_NONE, null, data, sw);
+    }
+
+    /**
+     * Construct the result of a command which could not be transmitted.
+     *
+     * @param errorCode the reason of the failure, one of the ERROR_ codes.
+     * @param message a description of the failure.
+     * @return the result.
+     */
+    public static TransmitResult failure(int errorCode, String message) {
+        return new TransmitResult(errorCode, message, NO_DATA, -1);
+    }
+
+    /**
+     * Check whether the card responded to the command.
+     *
+     * @return whether the error code is ERROR_NONE.
+     */
+    public boolean isSuccess() {
+        return errorCode == ERROR_NONE;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @return a description of the failure, or null on success.
+     */
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * @return the response data without status word.
+     */
+    public byte[] getData() {
+        return data.clone();
+    }
+
+    /**
+     * @return the base64-encoded response data without status word.
+     */
+    public String getDataBase64() {
+        return Base64Codec.encode(data);
+    }
+
+    /**
+     * @return the status word, or -1 on failure.
+     */
+    public int getSW() {
+        return sw;
+    }
+
+    /**
+     * @return the first status byte, or -1 on failure.
+     */
+    public int getSW1() {
+        return sw < 0 ? -1 : sw >> 8;
+    }
+
+    /**
+     * @return the second status byte, or -1 on failure.
+     */
+    public int getSW2() {
+        return sw < 0 ? -1 : sw & 0xFF;
+    }
+
+    /**
+     * Describe the result as a JSON object with the members data (base64),
+     * sw1, sw2, error and, on failure, message.
+     *
+     * @return the JSON object.
+     */
+    public String toJSON() {
+        StringBuilder json = new StringBuilder("{\"data\":");
+        Json.quote(json, getDataBase64())
+            .append(",\"sw1\":").append(getSW1())
+            .append(",\"sw2\":").append(getSW2())
+            .append(",\"error\":").append(errorCode);
+        if (errorMessage != null) {
+            Json.quote(json.append(",\"message\":"), errorMessage);
+        }
+        return json.append('}').toString();
+    }
+
+    public String toString() {
+        return toJSON();
+    }
+}
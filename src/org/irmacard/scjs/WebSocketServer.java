@@ -0,0 +1,569 @@
+package org.irmacard.scjs;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WebSocket server (RFC 6455) on the loopback interface, built on a single
+ * NIO selector thread. Connections are persistent; received messages are
+ * handed to a handler, and messages can be sent from any thread.
+ */
+public class WebSocketServer implements Runnable {
+
+    /**
+     * Receiver of the events of the server. The methods are called on the
+     * selector thread, except closed() after a call to Connection.close(),
+     * so they should hand off any blocking work.
+     */
+    public interface Handler {
+
+        /**
+         * Check whether a page from an origin may connect.
+         *
+         * @param origin the Origin header of the handshake, or null if
+         *        absent.
+         * @return whether the connection is accepted.
+         */
+        public boolean accept(String origin);
+
+        public void opened(Connection connection);
+
+        public void textReceived(Connection connection, String text);
+
+        public void binaryReceived(Connection connection, byte[] data);
+
+        public void closed(Connection connection);
+    }
+
+    /**
+     * Key suffix defined by RFC 6455 for the handshake.
+     */
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    /**
+     * Maximum size of the handshake request.
+     */
+    private static final int MAX_HANDSHAKE = 8192;
+
+    /**
+     * Maximum size of a (reassembled) message.
+     */
+    private static final int MAX_MESSAGE = 1 << 20;
+
+    /**
+     * Maximum number of bytes queued for a connection. A page which does not
+     * read its messages is disconnected once this is exceeded.
+     */
+    private static final long MAX_OUTPUT = 16L << 20;
+
+    private final Handler handler;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+
+    /**
+     * Connections with frames waiting to be written.
+     */
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+
+    private volatile boolean running = false;
+
+    /**
+     * Construct a new server listening on a port of the loopback interface.
+     *
+     * @param port the port to listen on, or 0 for any free port.
+     * @param handler the receiver of the events of the server.
+     * @exception IOException if the port cannot be bound.
+     */
+    public WebSocketServer(int port, Handler handler) throws IOException {
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(
+                InetAddress.getByName("127.0.0.1"), port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        this.thread = new Thread(this, "SmartCardJS WebSocket server");
+    }
+
+    /**
+     * Get the port on which the server listens.
+     *
+     * @return the local port.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Start accepting connections.
+     */
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stop the server and close all connections.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+
+                Connection connection;
+                while ((connection = writable.poll()) != null) {
+                    if (connection.key.isValid()) {
+                        connection.key.interestOps(
+                                SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Set<SelectionKey> keys = selector.selectedKeys();
+                for (Iterator<SelectionKey> i = keys.iterator(); i.hasNext(); ) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (key.attachment() != null) {
+                            ((Connection) key.attachment()).terminate();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    ((Connection) key.attachment()).terminate();
+                }
+            }
+            try {
+                selector.close();
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * Persistent connection with a page.
+     */
+    public final class Connection {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        private ByteBuffer input = ByteBuffer.allocate(4096);
+        private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicLong queued = new AtomicLong();
+
+        private boolean upgraded = false;
+        private boolean closing = false;
+        private volatile boolean open = false;
+
+        /**
+         * Opcode and data of a fragmented message being received.
+         */
+        private int fragmentOpcode = -1;
+        private byte[] fragments = null;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Check whether the connection is open for sending messages.
+         *
+         * @return whether the connection is open.
+         */
+        public boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * Send a text message.
+         *
+         * @param text the message.
+         */
+        public void sendText(String text) {
+            try {
+                send(OPCODE_TEXT, text.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Send a binary message.
+         *
+         * @param data the message.
+         */
+        public void sendBinary(byte[] data) {
+            send(OPCODE_BINARY, data);
+        }
+
+        /**
+         * Close the connection after the queued messages have been sent.
+         */
+        public void close() {
+            if (markClosed()) {
+                handler.closed(this);
+                queue(frame(OPCODE_CLOSE, new byte[] { 0x03, (byte) 0xE8 }));
+            }
+        }
+
+        /**
+         * Mark the connection as closed.
+         *
+         * @return whether the connection was open.
+         */
+        private synchronized boolean markClosed() {
+            boolean wasOpen = open;
+            open = false;
+            return wasOpen;
+        }
+
+        private void send(int opcode, byte[] data) {
+            if (!open) {
+                return;
+            }
+            if (queued.get() + data.length > MAX_OUTPUT) {
+                // The page stopped reading; sending more would only pile up
+                close();
+                return;
+            }
+            queue(frame(opcode, data));
+        }
+
+        private void queue(ByteBuffer frame) {
+            queued.addAndGet(frame.remaining());
+            output.add(frame);
+            writable.add(this);
+            selector.wakeup();
+        }
+
+        private ByteBuffer frame(int opcode, byte[] data) {
+            int length = data.length;
+            int header = length < 126 ? 2 : length < 65536 ? 4 : 10;
+            ByteBuffer frame = ByteBuffer.allocate(header + length);
+            frame.put((byte) (0x80 | opcode));
+            if (length < 126) {
+                frame.put((byte) length);
+            } else if (length < 65536) {
+                frame.put((byte) 126).putShort((short) length);
+            } else {
+                frame.put((byte) 127).putLong(length);
+            }
+            frame.put(data);
+            frame.flip();
+            return frame;
+        }
+
+        void read() throws IOException {
+            if (!input.hasRemaining()) {
+                int limit = upgraded ? MAX_MESSAGE + 14 : MAX_HANDSHAKE;
+                if (input.capacity() >= limit) {
+                    throw new IOException("message too large");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(2 * input.capacity(), limit));
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+
+            if (channel.read(input) < 0) {
+                terminate();
+                return;
+            }
+
+            input.flip();
+            try {
+                if (!upgraded) {
+                    handshake();
+                }
+                while (upgraded && channel.isOpen() && frame()) {
+                    // process all complete frames
+                }
+            } finally {
+                input.compact();
+            }
+        }
+
+        void write() throws IOException {
+            ByteBuffer frame;
+            while ((frame = output.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                output.poll();
+                queued.addAndGet(-frame.limit());
+            }
+
+            if (closing || (!open && upgraded)) {
+                terminate();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Process the handshake request once it has been received entirely.
+         */
+        private void handshake() throws IOException {
+            int end = -1;
+            for (int i = input.position(); i + 3 < input.limit(); i++) {
+                if (input.get(i) == '\r' && input.get(i + 1) == '\n'
+                        && input.get(i + 2) == '\r' && input.get(i + 3) == '\n') {
+                    end = i + 4;
+                    break;
+                }
+            }
+            if (end < 0) {
+                return;
+            }
+
+            byte[] bytes = new byte[end - input.position()];
+            input.get(bytes);
+            String[] lines = new String(bytes, "ISO-8859-1").split("\r\n");
+            Map<String, String> headers = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(),
+                            lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            String key = headers.get("sec-websocket-key");
+            String upgrade = headers.get("upgrade");
+            if (!lines[0].startsWith("GET ") || key == null || upgrade == null
+                    || !upgrade.equalsIgnoreCase("websocket")
+                    || !"13".equals(headers.get("sec-websocket-version"))) {
+                reject("400 Bad Request");
+                return;
+            }
+            if (!handler.accept(headers.get("origin"))) {
+                reject("403 Forbidden");
+                return;
+            }
+
+            String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n";
+            ByteBuffer reply = ByteBuffer.wrap(response.getBytes("ISO-8859-1"));
+            queued.addAndGet(reply.remaining());
+            output.add(reply);
+            this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            upgraded = true;
+            open = true;
+            handler.opened(this);
+        }
+
+        private void reject(String status) throws IOException {
+            String response = "HTTP/1.1 " + status + "\r\nConnection: close\r\n"
+                    + "Content-Length: 0\r\n\r\n";
+            ByteBuffer reply = ByteBuffer.wrap(response.getBytes("ISO-8859-1"));
+            queued.addAndGet(reply.remaining());
+            output.add(reply);
+            closing = true;
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Process a single frame, if it has been received entirely.
+         *
+         * @return whether a frame was processed.
+         */
+        private boolean frame() throws IOException {
+            int start = input.position();
+            int available = input.remaining();
+            if (available < 2) {
+                return false;
+            }
+
+            int first = input.get(start) & 0xFF;
+            int second = input.get(start + 1) & 0xFF;
+            boolean fin = (first & 0x80) != 0;
+            int opcode = first & 0x0F;
+            if ((second & 0x80) == 0) {
+                throw new IOException("unmasked client frame");
+            }
+
+            long length = second & 0x7F;
+            int header = 2;
+            if (length == 126) {
+                if (available < 4) {
+                    return false;
+                }
+                length = input.getShort(start + 2) & 0xFFFF;
+                header = 4;
+            } else if (length == 127) {
+                if (available < 10) {
+                    return false;
+                }
+                length = input.getLong(start + 2);
+                header = 10;
+            }
+            if (length < 0 || length > MAX_MESSAGE) {
+                throw new IOException("message too large");
+            }
+            if (available < header + 4 + length) {
+                return false;
+            }
+
+            byte[] mask = new byte[4];
+            input.position(start + header);
+            input.get(mask);
+            byte[] data = new byte[(int) length];
+            input.get(data);
+            for (int i = 0; i < data.length; i++) {
+                data[i] ^= mask[i & 3];
+            }
+
+            switch (opcode) {
+            case OPCODE_TEXT:
+            case OPCODE_BINARY:
+                if (fragmentOpcode >= 0) {
+                    throw new IOException("unfinished fragmented message");
+                }
+                if (fin) {
+                    deliver(opcode, data);
+                } else {
+                    fragmentOpcode = opcode;
+                    fragments = data;
+                }
+                break;
+            case OPCODE_CONTINUATION:
+                if (fragmentOpcode < 0) {
+                    throw new IOException("unexpected continuation frame");
+                }
+                if (fragments.length + data.length > MAX_MESSAGE) {
+                    throw new IOException("message too large");
+                }
+                byte[] joined = new byte[fragments.length + data.length];
+                System.arraycopy(fragments, 0, joined, 0, fragments.length);
+                System.arraycopy(data, 0, joined, fragments.length, data.length);
+                fragments = joined;
+                if (fin) {
+                    deliver(fragmentOpcode, fragments);
+                    fragmentOpcode = -1;
+                    fragments = null;
+                }
+                break;
+            case OPCODE_PING:
+                queue(frame(OPCODE_PONG, data));
+                break;
+            case OPCODE_PONG:
+                break;
+            case OPCODE_CLOSE:
+                if (markClosed()) {
+                    handler.closed(this);
+                    queue(frame(OPCODE_CLOSE, data));
+                } else {
+                    terminate();
+                }
+                return false;
+            default:
+                throw new IOException("unknown opcode " + opcode);
+            }
+            return true;
+        }
+
+        private void deliver(int opcode, byte[] data) throws IOException {
+            if (!open) {
+                return;
+            }
+            if (opcode == OPCODE_TEXT) {
+                handler.textReceived(this, new String(data, "UTF-8"));
+            } else {
+                handler.binaryReceived(this, data);
+            }
+        }
+
+        /**
+         * Close the socket without closing handshake.
+         */
+        void terminate() {
+            if (markClosed()) {
+                handler.closed(this);
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to clean up
+            }
+        }
+    }
+
+    /**
+     * Compute the Sec-WebSocket-Accept value for a handshake key.
+     */
+    private static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64Codec.encode(sha1.digest((key + GUID).getBytes("ISO-8859-1")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.irmacard.simulator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.irmacard.chvservice.CommandPattern;
+import org.irmacard.scjs.HexCodec;
+
+/**
+ * Script which determines how a simulated card answers commands. A script is
+ * an ordered list of rules, each mapping a command pattern to a response and
+ * a latency; the first rule matching a command applies. Commands which match
+ * no rule are answered with 6D00 (instruction not supported).
+ * 
+ * In its textual form each rule is a line like
+ * 
+ * <pre>
+ * 00A40400 * => 9000 latency=2.5 jitter=0.5
+ * </pre>
+ * 
+ * where the pattern consists of hex-encoded bytes, ".." matches any byte and
+ * a trailing "*" matches any remainder of the command, see CommandPattern.
+ * Latency and jitter are given in milliseconds. Lines starting with '#' are
+ * ignored.
+ */
+public class CardScript {
+
+    /**
+     * Response to commands which match no rule.
+     */
+    private static final byte[] INS_NOT_SUPPORTED = { 0x6D, 0x00 };
+
+    /**
+     * A single rule of the script.
+     */
+    static class Rule {
+        final CommandPattern pattern;
+        final byte[] response;
+        final long latency;
+        final long jitter;
+
+        Rule(CommandPattern pattern, byte[] response, long latency, long jitter) {
+            this.pattern = pattern;
+            this.response = response;
+            this.latency = latency;
+            this.jitter = jitter;
+        }
+    }
+
+    private final List<Rule> rules = new CopyOnWriteArrayList<Rule>();
+    private final Random random = new Random();
+    private volatile long defaultLatency = 0;
+    private volatile long defaultJitter = 0;
+
+    /**
+     * Set the latency of rules which do not specify their own.
+     * 
+     * @param latency the latency in milliseconds.
+     * @param jitter the maximum random deviation from the latency, in 
+     *        milliseconds.
+     */
+    public void setLatency(double latency, double jitter) {
+        defaultLatency = toNanos(latency);
+        defaultJitter = toNanos(jitter);
+    }
+
+    /**
+     * Add a rule with the default latency.
+     * 
+     * @param pattern the command pattern, see the class description.
+     * @param response the hex-encoded response.
+     */
+    public void add(String pattern, String response) {
+        add(pattern, response, -1, -1);
+    }
+
+    /**
+     * Add a rule.
+     * 
+     * @param pattern the command pattern, see the class description.
+     * @param response the hex-encoded response.
+     * @param latency the latency in milliseconds, or a negative value for 
+     *        the default latency.
+     * @param jitter the maximum random deviation from the latency, in 
+     *        milliseconds, or a negative value for the default jitter.
+     */
+    public void add(String pattern, String response, double latency, double jitter) {
+        CommandPattern commands = new CommandPattern(pattern);
+        byte[] answer = HexCodec.decode(response, false);
+        if (answer.length < 2) {
+            throw new IllegalArgumentException("response without status word: " + response);
+        }
+
+        rules.add(new Rule(commands, answer,
+                latency < 0 ? -1 : toNanos(latency),
+                jitter < 0 ? -1 : toNanos(jitter)));
+    }
+
+    /**
+     * Add the rules read from a stream, see the class description.
+     * 
+     * @param in the stream to read from, which is closed afterwards.
+     * @exception IOException if the stream cannot be read or is malformed.
+     */
+    public void load(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                int arrow = line.indexOf("=>");
+                if (arrow < 0) {
+                    throw new IOException("line " + number + ": missing '=>'");
+                }
+
+                StringBuilder response = new StringBuilder();
+                double latency = -1;
+                double jitter = -1;
+                try {
+                    for (String field : line.substring(arrow + 2).trim().split("\\s+")) {
+                        if (field.startsWith("latency=")) {
+                            latency = Double.parseDouble(field.substring(8));
+                        } else if (field.startsWith("jitter=")) {
+                            jitter = Double.parseDouble(field.substring(7));
+                        } else if (field.indexOf('=') >= 0) {
+                            throw new IllegalArgumentException("unknown option " + field);
+                        } else {
+                            response.append(field);
+                        }
+                    }
+                    add(line.substring(0, arrow), response.toString(), latency, jitter);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("line " + number + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Answer a command, after waiting for the latency of the applicable rule.
+     * 
+     * @param command the array holding the command.
+     * @param length the length of the command.
+     * @return the response to the command.
+     */
+    byte[] respond(byte[] command, int length) {
+        for (Rule rule : rules) {
+            if (rule.pattern.matches(command, length)) {
+                delay(rule.latency < 0 ? defaultLatency : rule.latency,
+                        rule.jitter < 0 ? defaultJitter : rule.jitter);
+                return rule.response.clone();
+            }
+        }
+
+        delay(defaultLatency, defaultJitter);
+        return INS_NOT_SUPPORTED.clone();
+    }
+
+    private void delay(long latency, long jitter) {
+        long nanos = latency;
+        if (jitter > 0) {
+            nanos += (long) ((2 * random.nextDouble() - 1) * jitter);
+        }
+        if (nanos <= 0) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + nanos;
+        while ((nanos = deadline - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static long toNanos(double millis) {
+        return (long) (millis * 1000000);
+    }
+}
@@ -0,0 +1,170 @@
+package org.irmacard.simulator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Simulated card which answers commands according to a script. Only the 
+ * basic channel is supported and control commands are answered with an 
+ * empty response, so the reader appears to have no special features.
+ */
+public class VirtualCard extends Card {
+
+    /**
+     * Minimal answer to reset, for simulations which do not care about it.
+     */
+    public static final byte[] DEFAULT_ATR = { 0x3B, 0x00 };
+
+    private final ATR atr;
+    private final CardScript script;
+    private final CardChannel channel = new BasicChannel();
+
+    /**
+     * Lock held by the thread which has exclusive access to the card.
+     */
+    private final ReentrantLock exclusive = new ReentrantLock();
+
+    private volatile boolean connected = false;
+
+    /**
+     * Whether the card was reset since the terminal connected to it.
+     */
+    private volatile boolean reset = false;
+
+    /**
+     * Construct a new simulated card.
+     * 
+     * @param atr the answer to reset of the card.
+     * @param script the script which determines the answers of the card.
+     */
+    public VirtualCard(byte[] atr, CardScript script) {
+        this.atr = new ATR(atr);
+        this.script = script;
+    }
+
+    public CardScript getScript() {
+        return script;
+    }
+
+    /**
+     * Mark the card as connected, as it is when a terminal connects to it.
+     */
+    void connect() {
+        connected = true;
+        reset = false;
+    }
+
+    /**
+     * Simulate a reset of the card by another application. Commands fail as
+     * they do with PC/SC until the terminal connects to the card again.
+     */
+    public void reset() {
+        reset = true;
+    }
+
+    public ATR getATR() {
+        return atr;
+    }
+
+    public String getProtocol() {
+        return "T=1";
+    }
+
+    public CardChannel getBasicChannel() {
+        checkConnected();
+        return channel;
+    }
+
+    public CardChannel openLogicalChannel() throws CardException {
+        throw new CardException("logical channels are not supported");
+    }
+
+    public void beginExclusive() throws CardException {
+        checkConnected();
+        if (exclusive.isHeldByCurrentThread()) {
+            throw new CardException("exclusive access already established");
+        }
+        exclusive.lock();
+    }
+
+    public void endExclusive() throws CardException {
+        if (!exclusive.isHeldByCurrentThread()) {
+            throw new IllegalStateException("exclusive access not held by this thread");
+        }
+        exclusive.unlock();
+    }
+
+    public byte[] transmitControlCommand(int controlCode, byte[] command)
+            throws CardException {
+        checkConnected();
+        return new byte[0];
+    }
+
+    public void disconnect(boolean reset) throws CardException {
+        connected = false;
+        while (exclusive.isHeldByCurrentThread()) {
+            exclusive.unlock();
+        }
+    }
+
+    /**
+     * Answer a command, waiting while another thread has exclusive access.
+     */
+    private byte[] respond(byte[] command, int length) throws CardException {
+        checkConnected();
+        if (reset) {
+            throw new CardException("SCARD_W_RESET_CARD");
+        }
+        exclusive.lock();
+        try {
+            return script.respond(command, length);
+        } finally {
+            exclusive.unlock();
+        }
+    }
+
+    private void checkConnected() {
+        if (!connected) {
+            throw new IllegalStateException("card has been disconnected");
+        }
+    }
+
+    /**
+     * The basic channel of the card.
+     */
+    private class BasicChannel extends CardChannel {
+
+        public Card getCard() {
+            return VirtualCard.this;
+        }
+
+        public int getChannelNumber() {
+            return 0;
+        }
+
+        public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+            byte[] bytes = command.getBytes();
+            return new ResponseAPDU(respond(bytes, bytes.length));
+        }
+
+        public int transmit(ByteBuffer command, ByteBuffer response)
+                throws CardException {
+            byte[] bytes = new byte[command.remaining()];
+            command.get(bytes);
+            byte[] answer = respond(bytes, bytes.length);
+            response.put(answer);
+            return answer.length;
+        }
+
+        public void close() throws CardException {
+            throw new IllegalStateException("the basic channel cannot be closed");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.irmacard.simulator;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+
+/**
+ * Simulated reader in which a virtual card can be inserted and removed. The
+ * terminal can be used wherever a PC/SC terminal is, for instance to 
+ * construct a TerminalCardService.
+ */
+public class VirtualCardTerminal extends CardTerminal {
+
+    private final String name;
+    private VirtualCard card;
+
+    /**
+     * Construct a new empty terminal.
+     * 
+     * @param name the name of the terminal.
+     */
+    public VirtualCardTerminal(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the card in the terminal.
+     * 
+     * @return the card, or null if the terminal is empty.
+     */
+    public synchronized VirtualCard getCard() {
+        return card;
+    }
+
+    /**
+     * Insert a card in the terminal, replacing the card already present.
+     * 
+     * @param card the card to be inserted.
+     */
+    synchronized void insert(VirtualCard card) {
+        this.card = card;
+        card.connect();
+        notifyAll();
+    }
+
+    /**
+     * Remove the card from the terminal.
+     * 
+     * @return the removed card, or null if the terminal was empty.
+     */
+    synchronized VirtualCard remove() {
+        VirtualCard removed = card;
+        if (removed != null) {
+            try {
+                removed.disconnect(false);
+            } catch (CardException e) {
+                // the simulated card does not fail to disconnect
+            }
+            card = null;
+            notifyAll();
+        }
+        return removed;
+    }
+
+    public synchronized Card connect(String protocol) throws CardException {
+        if (card == null) {
+            throw new CardNotPresentException("no card present in " + name);
+        }
+        if (!protocol.equals("*") && !protocol.equals(card.getProtocol())) {
+            throw new CardException("unsupported protocol " + protocol);
+        }
+        card.connect();
+        return card;
+    }
+
+    public synchronized boolean isCardPresent() {
+        return card != null;
+    }
+
+    public synchronized boolean waitForCardPresent(long timeout) 
+            throws CardException {
+        return waitFor(true, timeout);
+    }
+
+    public synchronized boolean waitForCardAbsent(long timeout) 
+            throws CardException {
+        return waitFor(false, timeout);
+    }
+
+    private boolean waitFor(boolean present, long timeout) throws CardException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("negative timeout");
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while ((card != null) != present) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeout == 0) {
+                    wait();
+                } else if (remaining > 0) {
+                    wait(remaining);
+                } else {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CardException("interrupted while waiting", e);
+        }
+        return true;
+    }
+
+    public String toString() {
+        return "VirtualCardTerminal " + name;
+    }
+}
@@ -0,0 +1,136 @@
+package org.irmacard.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.smartcardio.CardTerminal;
+
+import net.sourceforge.scuba.smartcards.CardEvent;
+import net.sourceforge.scuba.smartcards.CardTerminalEvent;
+import net.sourceforge.scuba.smartcards.CardTerminalListener;
+import net.sourceforge.scuba.smartcards.TerminalCardService;
+import net.sourceforge.scuba.smartcards.TerminalFactoryListener;
+
+/**
+ * Set of simulated readers, in which cards are inserted and removed by 
+ * calling its methods. The listeners are notified of these events in the 
+ * same way as by the card manager, so code written against physical readers
+ * can be driven without hardware, for instance in load tests.
+ */
+public class VirtualReaders {
+
+    private final Map<String, VirtualCardTerminal> terminals =
+            new ConcurrentSkipListMap<String, VirtualCardTerminal>();
+
+    private final List<CardTerminalListener> cardListeners =
+            new CopyOnWriteArrayList<CardTerminalListener>();
+
+    private final List<TerminalFactoryListener> terminalListeners =
+            new CopyOnWriteArrayList<TerminalFactoryListener>();
+
+    public void addCardTerminalListener(CardTerminalListener listener) {
+        cardListeners.add(listener);
+    }
+
+    public void removeCardTerminalListener(CardTerminalListener listener) {
+        cardListeners.remove(listener);
+    }
+
+    public void addTerminalFactoryListener(TerminalFactoryListener listener) {
+        terminalListeners.add(listener);
+    }
+
+    public void removeTerminalFactoryListener(TerminalFactoryListener listener) {
+        terminalListeners.remove(listener);
+    }
+
+    /**
+     * Get the simulated readers.
+     * 
+     * @return the readers, ordered by name.
+     */
+    public List<CardTerminal> getTerminals() {
+        return new ArrayList<CardTerminal>(terminals.values());
+    }
+
+    /**
+     * Get a simulated reader by name.
+     * 
+     * @param name the name of the reader.
+     * @return the reader, or null if there is no such reader.
+     */
+    public VirtualCardTerminal getTerminal(String name) {
+        return terminals.get(name);
+    }
+
+    /**
+     * Add a new empty reader, or return the existing reader by that name.
+     * 
+     * @param name the name of the reader.
+     * @return the reader.
+     */
+    public synchronized VirtualCardTerminal addTerminal(String name) {
+        VirtualCardTerminal terminal = terminals.get(name);
+        if (terminal == null) {
+            terminal = new VirtualCardTerminal(name);
+            terminals.put(name, terminal);
+            CardTerminalEvent event = new CardTerminalEvent(CardTerminalEvent.ADDED, terminal);
+            for (TerminalFactoryListener listener : terminalListeners) {
+                listener.cardTerminalAdded(event);
+            }
+        }
+        return terminal;
+    }
+
+    /**
+     * Remove a reader, removing its card first.
+     * 
+     * @param name the name of the reader.
+     */
+    public synchronized void removeTerminal(String name) {
+        VirtualCardTerminal terminal = terminals.get(name);
+        if (terminal != null) {
+            removeCard(name);
+            terminals.remove(name);
+            CardTerminalEvent event = new CardTerminalEvent(CardTerminalEvent.REMOVED, terminal);
+            for (TerminalFactoryListener listener : terminalListeners) {
+                listener.cardTerminalRemoved(event);
+            }
+        }
+    }
+
+    /**
+     * Insert a card in a reader, adding the reader if necessary. A card 
+     * already present is removed first.
+     * 
+     * @param name the name of the reader.
+     * @param card the card to be inserted.
+     */
+    public synchronized void insertCard(String name, VirtualCard card) {
+        VirtualCardTerminal terminal = addTerminal(name);
+        removeCard(name);
+        terminal.insert(card);
+        CardEvent event = new CardEvent(CardEvent.INSERTED, new TerminalCardService(terminal));
+        for (CardTerminalListener listener : cardListeners) {
+            listener.cardInserted(event);
+        }
+    }
+
+    /**
+     * Remove the card from a reader.
+     * 
+     * @param name the name of the reader.
+     */
+    public synchronized void removeCard(String name) {
+        VirtualCardTerminal terminal = terminals.get(name);
+        if (terminal != null && terminal.remove() != null) {
+            CardEvent event = new CardEvent(CardEvent.REMOVED, new TerminalCardService(terminal));
+            for (CardTerminalListener listener : cardListeners) {
+                listener.cardRemoved(event);
+            }
+        }
+    }
+}